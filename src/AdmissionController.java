@@ -0,0 +1,100 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+// Controllo di ammissione globale. Un thread campiona ogni chat.admission.sampleMs la profondità
+// totale delle code in uscita e il carico CPU del processo: se le code superano
+// chat.admission.maxOutbound, o la CPU resta sopra chat.admission.maxCpu per cpuSamples campioni
+// di fila, il server rifiuta i nuovi messaggi finché le code non scendono sotto l'80% della soglia
+// e la CPU sotto la soglia (isteresi). Sul percorso dei messaggi resta la lettura di un volatile.
+public class AdmissionController {
+    private final long maxOutbound;
+    private final double maxCpu;
+    private final int cpuSamples;
+    private final long sampleMs;
+    private final com.sun.management.OperatingSystemMXBean os;
+
+    private volatile boolean shedding;
+    private volatile long outbound;
+    private volatile double cpu;
+    private int cpuHigh; // campioni consecutivi sopra la soglia, solo dal thread di campionamento
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean running = true;
+    private Thread sampler;
+
+    public AdmissionController(long maxOutbound, double maxCpu, int cpuSamples, long sampleMs) {
+        this.maxOutbound = maxOutbound;
+        this.maxCpu = maxCpu;
+        this.cpuSamples = cpuSamples;
+        this.sampleMs = sampleMs;
+        this.os = ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean b ? b : null;
+    }
+
+    public static AdmissionController fromSystemProperties() {
+        return new AdmissionController(
+                Long.getLong("chat.admission.maxOutbound", 1_000_000L),
+                Double.parseDouble(System.getProperty("chat.admission.maxCpu", "0.95")),
+                Integer.getInteger("chat.admission.cpuSamples", 20),
+                Long.getLong("chat.admission.sampleMs", 100L));
+    }
+
+    public void start() {
+        sampler = new Thread(this::sampleLoop, "admission");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (sampler != null) sampler.interrupt();
+    }
+
+    public boolean isShedding() {
+        return shedding;
+    }
+
+    // un messaggio rifiutato per sovraccarico
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getOutbound() {
+        return outbound;
+    }
+
+    public double getCpu() {
+        return cpu;
+    }
+
+    private void sampleLoop() {
+        while (running) {
+            try {
+                Thread.sleep(sampleMs);
+                sample();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void sample() {
+        long depth = OutboundQueue.getTotalDepth();
+        double load = os != null ? os.getProcessCpuLoad() : -1; // negativo se non disponibile
+        outbound = depth;
+        cpu = load;
+        cpuHigh = load >= maxCpu ? cpuHigh + 1 : 0;
+
+        boolean overloaded = depth > maxOutbound || cpuHigh >= cpuSamples;
+        if (!shedding && overloaded) {
+            shedding = true;
+            System.out.println("Sovraccarico (code in uscita " + depth + ", CPU " + Math.round(load * 100) + "%): nuovi messaggi rifiutati");
+        } else if (shedding && depth < maxOutbound * 8 / 10 && load < maxCpu) {
+            shedding = false;
+            cpuHigh = 0;
+            System.out.println("Carico rientrato: messaggi di nuovo accettati (rifiutati finora " + rejected.sum() + ")");
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Autenticazione fuori dal percorso di I/O. L'hash delle password (costoso in CPU) gira su un pool
+// dedicato e limitato: se la coda è piena la richiesta viene rifiutata subito (admission control)
+// invece di rallentare tutti. Tentativi limitati per IP e per username; dopo il login il client
+// riceve un token di sessione che permette di riconnettersi senza rifare l'hash.
+public class AuthService {
+    public enum Status { OK, WRONG, EXISTS, THROTTLED, BUSY, ERROR }
+
+    public record Result(Status status, User user, String token) {
+        static Result of(Status status) {
+            return new Result(status, null, null);
+        }
+    }
+
+    private record Session(String username, long expiresAt) {
+    }
+
+    private final UserManager userManager;
+    private final DBManager dbManager;
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor hashPool;
+    private final Executor io = r -> Thread.ofVirtual().start(r); // scritture sul DB
+    private final String dummyHash; // per non rivelare con i tempi se un username esiste
+
+    private final Map<String, TokenBucket> ipLimits = new ConcurrentHashMap<>();
+    // chiave = username scelto dal client prima del login: oltre maxTrackedUsers gli username nuovi
+    // restano soggetti solo al limite per IP, finché cleanup() non libera i bucket inutilizzati
+    private final Map<String, TokenBucket> userLimits = new ConcurrentHashMap<>();
+    private final int maxTrackedUsers;
+    private final double ipBurst, ipPerSec, userBurst, userPerSec;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long sessionTtlMs;
+    private final SecureRandom random = new SecureRandom();
+
+    public AuthService(UserManager userManager, DBManager dbManager, int iterations, int threads, int queueSize,
+                       double ipBurst, double ipPerSec, double userBurst, double userPerSec, int maxTrackedUsers,
+                       long sessionTtlMs) {
+        this.userManager = userManager;
+        this.dbManager = dbManager;
+        this.hasher = new PasswordHasher(iterations);
+        this.ipBurst = ipBurst;
+        this.ipPerSec = ipPerSec;
+        this.userBurst = userBurst;
+        this.userPerSec = userPerSec;
+        this.maxTrackedUsers = maxTrackedUsers;
+        this.sessionTtlMs = sessionTtlMs;
+
+        AtomicInteger n = new AtomicInteger();
+        hashPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "auth-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        dummyHash = hasher.hash("dummy");
+    }
+
+    public static AuthService fromSystemProperties(UserManager userManager, DBManager dbManager) {
+        return new AuthService(userManager, dbManager,
+                Integer.getInteger("chat.auth.iterations", 100_000),
+                Integer.getInteger("chat.auth.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("chat.auth.queue", 256),
+                Integer.getInteger("chat.auth.ipBurst", 20), Integer.getInteger("chat.auth.ipPerSec", 5),
+                Integer.getInteger("chat.auth.userBurst", 5), Integer.getInteger("chat.auth.userPerSec", 1),
+                Integer.getInteger("chat.auth.maxTrackedUsers", 100_000),
+                Long.getLong("chat.auth.sessionTtlSec", 24 * 3600L) * 1000);
+    }
+
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    // richieste di hash in coda o in esecuzione
+    public int getPending() {
+        return hashPool.getQueue().size() + hashPool.getActiveCount();
+    }
+
+    // --------------------
+    // LOGIN / REGISTER / RESUME
+    // --------------------
+    public CompletableFuture<Result> login(String username, String password, String ip) {
+        if (!allowed(ip, username)) return CompletableFuture.completedFuture(Result.of(Status.THROTTLED));
+
+        User u = userManager.getUser(username);
+        return complete(submit(() -> {
+            String stored = u != null ? u.getPassword() : dummyHash;
+            if (!hasher.verify(password, stored) || u == null) return Result.of(Status.WRONG);
+
+            // password in chiaro o con meno iterazioni: si aggiorna l'hash, la scrittura va sul DB dopo
+            if (hasher.needsRehash(stored)) {
+                String hash = hasher.hash(password);
+                u.setPassword(hash);
+                io.execute(() -> {
+                    try {
+                        dbManager.updatePassword(u.getID(), hash);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.out.println("Errore nell'aggiornamento della password di " + u.getUsername());
+                    }
+                });
+            }
+            return new Result(Status.OK, u, issueToken(u));
+        }));
+    }
+
+    // l'hash si calcola sul pool, l'inserimento nel DB su un virtual thread
+    public CompletableFuture<Result> register(String username, String password, String ip) {
+        if (!allowed(ip, username)) return CompletableFuture.completedFuture(Result.of(Status.THROTTLED));
+        if (userManager.getUser(username) != null) return CompletableFuture.completedFuture(Result.of(Status.EXISTS));
+
+        return complete(submit(() -> hasher.hash(password)).thenApplyAsync(hash -> {
+            User nuovo = new User(0, username, hash, true);
+            // register() è atomico: due client con lo stesso username non possono registrarsi entrambi
+            if (!userManager.register(nuovo)) return Result.of(Status.EXISTS);
+            return new Result(Status.OK, nuovo, issueToken(nuovo));
+        }, io));
+    }
+
+    // riconnessione con il token di sessione: nessun hash, solo una lookup
+    public Result resume(String token, String ip) {
+        if (!acquire(ipLimits, ip, ipBurst, ipPerSec, Integer.MAX_VALUE)) return Result.of(Status.THROTTLED);
+
+        Session s = sessions.get(token);
+        if (s == null || s.expiresAt() < System.currentTimeMillis()) {
+            if (s != null) sessions.remove(token);
+            return Result.of(Status.WRONG);
+        }
+        User u = userManager.getUser(s.username());
+        return u != null ? new Result(Status.OK, u, token) : Result.of(Status.WRONG);
+    }
+
+    // elimina sessioni scadute e limiti inutilizzati; la chiama periodicamente il server
+    public void cleanup() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(s -> s.expiresAt() < now);
+        ipLimits.values().removeIf(TokenBucket::isFull);
+        userLimits.values().removeIf(TokenBucket::isFull);
+    }
+
+    public void shutdown() {
+        hashPool.shutdown();
+    }
+
+    // pool pieno → BUSY, qualsiasi altro errore → ERROR
+    private static CompletableFuture<Result> complete(CompletableFuture<Result> f) {
+        return f.exceptionally(ex -> {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof RejectedExecutionException) return Result.of(Status.BUSY);
+            cause.printStackTrace();
+            return Result.of(Status.ERROR);
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, hashPool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private boolean allowed(String ip, String username) {
+        return acquire(ipLimits, ip, ipBurst, ipPerSec, Integer.MAX_VALUE)
+                && acquire(userLimits, username, userBurst, userPerSec, maxTrackedUsers);
+    }
+
+    // perSec <= 0 disattiva il limite; con la mappa piena una chiave nuova non viene limitata
+    private static boolean acquire(Map<String, TokenBucket> limits, String key, double burst, double perSec, int max) {
+        if (perSec <= 0) return true;
+        TokenBucket b = limits.get(key);
+        if (b == null) {
+            if (limits.size() >= max) return true;
+            b = limits.computeIfAbsent(key, k -> new TokenBucket(burst, perSec));
+        }
+        return b.tryAcquire();
+    }
+
+    private String issueToken(User u) {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(u.getUsername(), System.currentTimeMillis() + sessionTtlMs));
+        return token;
+    }
+}
@@ -0,0 +1,633 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+// Microbenchmark dei percorsi caldi del server, senza dipendenze esterne.
+// Ogni caso fa un warmup e poi misura i ns per operazione; i parametri (dimensione del gruppo,
+// lunghezza della cronologia, dimensione del messaggio) si scelgono con system property.
+//
+//   java Benchmarks                                   → stampa i risultati
+//   java -Dbench.save=bench.txt Benchmarks            → salva i risultati come baseline
+//   java -Dbench.baseline=bench.txt Benchmarks        → confronta e fallisce se c'è una regressione
+//                                                       oltre bench.tolerance (default 0.20)
+public class Benchmarks {
+    private static final long WARMUP_MS = Long.getLong("bench.warmupMs", 500L);
+    private static final long MEASURE_MS = Long.getLong("bench.measureMs", 1000L);
+
+    private static volatile long sink;
+
+    private final Map<String, Double> results = new LinkedHashMap<>();
+
+    interface Op {
+        long run(int i) throws Exception;
+    }
+
+    // --------------------
+    // CASI
+    // --------------------
+    private void parsing(int size) throws Exception {
+        String line = "42|" + "x".repeat(size);
+
+        bench("parse.text.split size=" + size, i -> {
+            String[] parts = line.split("\\|", 2);
+            return Integer.parseInt(parts[0]) + parts[1].length();
+        });
+
+        bench("parse.text.indexOf size=" + size, i -> {
+            int sep = line.indexOf('|');
+            return Integer.parseInt(line.substring(0, sep)) + line.substring(sep + 1).length();
+        });
+
+        ByteBuffer frame = ByteBuffer.allocate(size + 16);
+        byte[] payload = "x".repeat(size).getBytes(StandardCharsets.UTF_8);
+        BinaryProtocol.writeVarint(frame, 1 + BinaryProtocol.varintSize(42) + payload.length);
+        frame.put(BinaryProtocol.SEND);
+        BinaryProtocol.writeVarint(frame, 42);
+        frame.put(payload);
+        frame.flip();
+        FrameDecoder decoder = new FrameDecoder();
+        long[] seen = new long[1];
+        ProtocolDecoder.Listener listener = new ProtocolDecoder.Listener() {
+            public void onBinary() {
+            }
+
+            public void onLine(String l) {
+            }
+
+            public void onChatMessage(int chatId, byte[] content) {
+                seen[0] += chatId + content.length;
+            }
+        };
+        bench("parse.binary size=" + size, i -> {
+            decoder.feed(frame.duplicate(), listener);
+            return seen[0];
+        });
+    }
+
+    private void encoding(int size) throws Exception {
+        String content = "x".repeat(size);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        TextWire text = new TextWire(OutputStream.nullOutputStream());
+        BinaryWire binary = new BinaryWire(OutputStream.nullOutputStream());
+
+        bench("message.new size=" + size, i -> {
+            Message m = new Message(i, content, i, 42);
+            return m.getContentBytes().length;
+        });
+
+        bench("format.text size=" + size, i -> {
+            text.writeMessage(42, i, i, i, bytes);
+            if ((i & 63) == 0) text.flush();
+            return i;
+        });
+
+        bench("format.binary size=" + size, i -> {
+            binary.writeMessage(42, i, i, i, bytes);
+            if ((i & 63) == 0) binary.flush();
+            return i;
+        });
+    }
+
+    private void groups(int groupSize) throws Exception {
+        Gruppo g = new Gruppo(1, "bench");
+        User[] users = new User[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            users[i] = new User(i, "u" + i, "pw", false);
+            g.addParticipant(users[i]);
+        }
+        bench("gruppo.addParticipant groupSize=" + groupSize, i -> {
+            g.addParticipant(users[i % groupSize]); // già presente: costo del controllo duplicati
+            return g.getParticipants().size();
+        });
+    }
+
+    private void history(int length) throws Exception {
+        MessageBuffer buffer = new MessageBuffer(length);
+        Message m = new Message(1, "ciao", 1, 1);
+        for (int i = 0; i < length; i++) buffer.add(m);
+
+        bench("history.add length=" + length, i -> {
+            buffer.add(m);
+            return buffer.size();
+        });
+        bench("history.tail50 length=" + length, i -> buffer.tail(50).size());
+    }
+
+    // log mappato in memoria: scrittura e lettura della pagina recente, come al riavvio
+    private void messageLog(int size) throws Exception {
+        Path dir = Files.createTempDirectory("bench-log");
+        MessageLog log = new MessageLog(dir, 4 * 1024 * 1024, 4, 16);
+        byte[] content = "x".repeat(size).getBytes(StandardCharsets.UTF_8);
+        long[] id = new long[1];
+
+        bench("log.append size=" + size, i -> {
+            log.append(new Message(i, content, ++id[0], 1, 0L));
+            return id[0];
+        });
+        bench("log.recent50 size=" + size, i -> log.recent(1, 50).size());
+        bench("log.before50 size=" + size, i -> log.before(1, id[0] - 100, 50).size());
+    }
+
+    private void chatsForUser(int chatsPerUser) throws Exception {
+        ChatManager chatManager = new ChatManager(new StubDB(chatsPerUser, 10000));
+        User u = new User(0, "u0", "pw", false);
+        try {
+            bench("chatManager.getChatsForUser chats=" + chatsPerUser, i -> chatManager.getChatsForUser(u).size());
+
+            // scalabilità dei registri concorrenti da 1 a N thread
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                scaling("chatManager.lookup chats=" + chatsPerUser + " threads=" + threads, threads,
+                        i -> chatManager.getChatByID(i % 10000) == null ? 0 : chatManager.getChatsForUser(u).size());
+            }
+        } finally {
+            chatManager.shutdown();
+        }
+    }
+
+    // limite di frequenza sul percorso dei messaggi: messaggio accettato, rifiutato e bucket
+    // condiviso da più thread (come il limite di una chat con molti mittenti)
+    private void rateLimit() throws Exception {
+        TokenBucket open = new TokenBucket(1e9, 1e9);
+        bench("limit.tryAcquire accepted", i -> open.tryAcquire() ? 1 : 0);
+        TokenBucket closed = new TokenBucket(1, 0.001);
+        closed.tryAcquire();
+        bench("limit.tryAcquire rejected", i -> closed.tryAcquire() ? 1 : 0);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            TokenBucket shared = new TokenBucket(1e9, 1e9);
+            scaling("limit.tryAcquire shared threads=" + threads, threads, i -> shared.tryAcquire() ? 1 : 0);
+        }
+    }
+
+    // costo delle metriche sul percorso caldo: contatore, istogramma e istogramma condiviso da
+    // più thread (come la latenza di una query chiamata da molti client)
+    private void metrics() throws Exception {
+        Metrics.Counter counter = Metrics.counter("bench_counter_total");
+        bench("metrics.counter", i -> {
+            counter.increment();
+            return i;
+        });
+        Metrics.Histogram histogram = Metrics.histogram("bench_latency_ns");
+        bench("metrics.histogram", i -> {
+            histogram.record(i * 37L);
+            return i;
+        });
+        bench("metrics.histogram.recordSince", i -> {
+            histogram.recordSince(System.nanoTime());
+            return i;
+        });
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            scaling("metrics.histogram shared threads=" + threads, threads, i -> {
+                histogram.record(i * 37L);
+                return i;
+            });
+        }
+        bench("metrics.render", i -> Metrics.render().length());
+    }
+
+    // avvio da snapshot: lettura del file e caricamento in parallelo di ChatManager e UserManager
+    private void startup(int userCount, int chatCount) throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= userCount; i++) users.add(new User(i, "user" + i, "password" + i, false));
+        List<Chat> chats = new ArrayList<>();
+        for (int id = 1; id <= chatCount; id++) {
+            if (id % 2 == 0) {
+                chats.add(new DM(id, users.get(id % userCount), users.get((id * 7) % userCount)));
+            } else {
+                Gruppo g = new Gruppo(id, "gruppo" + id);
+                for (int k = 0; k < 8; k++) g.getParticipants().add(users.get((id * 31 + k * 997) % userCount));
+                chats.add(g);
+            }
+        }
+        Path file = Files.createTempFile("bench-snapshot", ".bin");
+        Snapshot.write(file, users, chats);
+
+        StubDB db = new StubDB(0, 0);
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            Snapshot snapshot = Snapshot.load(file);
+            CompletableFuture<ChatManager> cm = CompletableFuture.supplyAsync(() -> new ChatManager(db, snapshot));
+            CompletableFuture<UserManager> um = CompletableFuture.supplyAsync(() -> new UserManager(db, snapshot));
+            sink += cm.join().getChats().size() + um.join().getUsers().size();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+            cm.join().shutdown();
+        }
+        Files.deleteIfExists(file);
+        String name = "startup.snapshot users=" + userCount + " chats=" + chatCount;
+        results.put(name, best);
+        System.out.printf("%-50s %12.1f ms%n", name, best);
+    }
+
+    // ondata di connessioni e poi di disconnessioni: costo dell'indice e dell'invio in blocco delle presenze
+    private void presenceStorm(int userCount, int groupSize) throws Exception {
+        StubDB db = new StubDB(0, 0);
+        ChatManager chatManager = new ChatManager(db);
+        UserManager userManager = new UserManager(db);
+        PresenceService presence = new PresenceService(chatManager, userManager, 64, 200, 20);
+        userManager.setPresence(presence);
+
+        User[] users = new User[userCount];
+        ClientHandler[] handlers = new ClientHandler[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new User(i + 1, "u" + (i + 1), "pw", false);
+            userManager.applyUser(users[i]);
+            handlers[i] = new ClientHandler(OutputStream.nullOutputStream(), () -> {}, "bench", chatManager, userManager);
+            handlers[i].onConnect();
+        }
+        // ogni utente sta in due gruppi sfalsati di mezzo gruppo
+        int id = 1;
+        for (int offset : new int[]{0, groupSize / 2}) {
+            for (int start = offset; start < userCount; start += groupSize) {
+                Gruppo g = new Gruppo(id++, "g" + start);
+                for (int k = start; k < Math.min(start + groupSize, userCount); k++) g.getParticipants().add(users[k]);
+                chatManager.applyChat(g);
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < userCount; i++) userManager.setClientHandler(users[i], handlers[i]);
+            double index = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            int lines = presence.flush();
+            double fanOut = (System.nanoTime() - start) / 1e6;
+            presenceResult("presence.connect", userCount, groupSize, index, fanOut, lines);
+
+            // esce la metà degli utenti: gli altri ricevono le notifiche
+            start = System.nanoTime();
+            for (int i = 0; i < userCount; i += 2) userManager.removeClientHandler(users[i], handlers[i]);
+            index = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            lines = presence.flush();
+            fanOut = (System.nanoTime() - start) / 1e6;
+            presenceResult("presence.disconnect", userCount, groupSize, index, fanOut, lines);
+        } finally {
+            for (ClientHandler h : handlers) h.onDisconnect();
+            chatManager.shutdown();
+        }
+    }
+
+    private void presenceResult(String name, int userCount, int groupSize, double indexMs, double fanOutMs, int lines) {
+        String full = name + " users=" + userCount + " group=" + groupSize;
+        results.put(full, indexMs + fanOutMs);
+        System.out.printf("%-50s %12.1f ms  (indice %.1f ms, invio %.1f ms, %d righe)%n",
+                full, indexMs + fanOutMs, indexMs, fanOutMs, lines);
+    }
+
+    // indice di ricerca: costruzione in parallelo, memoria e latenza delle query.
+    // Vocabolario di 50k parole con distribuzione sbilanciata (poche parole molto frequenti)
+    private void search(int messageCount, int chatCount) throws Exception {
+        int vocabulary = 50_000;
+        int perChat = messageCount / chatCount;
+        SearchIndex.Source source = (chatId, afterId, limit) -> {
+            List<Message> page = new ArrayList<>();
+            // id intercalati tra le chat come nel DB: id = k * chatCount + chatId
+            long k = afterId == 0 ? 0 : (afterId - chatId) / chatCount + 1;
+            java.util.Random random = new java.util.Random(chatId * 31L + k);
+            for (; k < perChat && page.size() < limit; k++) {
+                StringBuilder sb = new StringBuilder();
+                for (int w = 0; w < 8; w++) {
+                    double x = random.nextDouble();
+                    sb.append('w').append(Integer.toString((int) (x * x * x * vocabulary), 36)).append(' ');
+                }
+                page.add(new Message(1, sb.toString(), k * chatCount + chatId, chatId));
+            }
+            return page;
+        };
+        List<Chat> chats = new ArrayList<>();
+        for (int id = 1; id <= chatCount; id++) chats.add(new Gruppo(id, "g" + id));
+
+        long heapBefore = usedHeap();
+        SearchIndex index = new SearchIndex();
+        long start = System.nanoTime();
+        index.build(source, chats, Long.MAX_VALUE, Runtime.getRuntime().availableProcessors());
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        double heapMb = (usedHeap() - heapBefore) / (1024.0 * 1024);
+        String name = "search.build messages=" + messageCount;
+        results.put(name, buildMs);
+        System.out.printf("%-50s %12.1f ms  (%d termini, stima %.0f MB, heap %.0f MB)%n",
+                name, buildMs, index.getTermCount(), index.getMemoryBytes() / (1024.0 * 1024), heapMb);
+
+        List<Chat> one = List.of(chats.get(0));
+        List<Chat> fifty = chats.subList(0, Math.min(50, chatCount));
+        String common = "w0";
+        String rare = "w" + Integer.toString(vocabulary - 1, 36);
+        bench("search.chat common messages=" + messageCount, i -> index.search(one, common, 20).size());
+        bench("search.chat rare messages=" + messageCount, i -> index.search(one, rare, 20).size());
+        bench("search.chat common+rare messages=" + messageCount, i -> index.search(one, common + " " + rare, 20).size());
+        bench("search.all50 common messages=" + messageCount, i -> index.search(fifty, common, 20).size());
+        sink += index.getTermCount();
+    }
+
+    // journal a blocchi contro un INSERT per messaggio, con un round trip verso il DB simulato da
+    // StubDriver: il risultato in ops/s sono i messaggi salvati al secondo
+    private void journal(int latencyUs) throws Exception {
+        StubDriver.setLatencyMicros(latencyUs);
+        DBManager db = new DBManager();
+        try {
+            int single = Integer.getInteger("bench.journalSingleMessages", 2000);
+            long start = System.nanoTime();
+            for (int i = 0; i < single; i++) db.addMessage(1, 1, "ciao come va? " + i);
+            report("journal.perMessageInsert latencyUs=" + latencyUs, (double) (System.nanoTime() - start) / single);
+
+            int n = Integer.getInteger("bench.journalMessages", 200_000);
+            MessageJournal journal = MessageJournal.fromSystemProperties(db);
+            start = System.nanoTime();
+            CompletableFuture<Void> last = null;
+            for (int i = 0; i < n; i++) {
+                if (!journal.awaitSpace()) throw new IllegalStateException("journal bloccato");
+                last = journal.append(new Message(1, "ciao come va? " + i, i + 1L, 1));
+            }
+            last.join(); // i blocchi si scrivono in ordine: l'ultimo completa dopo tutti gli altri
+            report("journal.batched latencyUs=" + latencyUs, (double) (System.nanoTime() - start) / n);
+            journal.shutdown();
+        } finally {
+            StubDriver.setLatencyMicros(0);
+        }
+    }
+
+    // caricamento con una query per tabella (user-004): chatCount chat, metà DM e metà gruppi da 8,
+    // poi messageCount messaggi letti a pagine; ogni query costa un round trip simulato da StubDriver.
+    // Le righe le genera lo stub, quindi il tempo comprende anche la loro costruzione
+    private void bulkLoad(int chatCount, int messageCount, int latencyUs) throws Exception {
+        List<Map<String, Object>> chatRows = new ArrayList<>();
+        List<Map<String, Object>> memberRows = new ArrayList<>();
+        List<Map<String, Object>> groupRows = new ArrayList<>();
+        for (int id = 1; id <= chatCount; id++) {
+            boolean group = id % 2 == 1;
+            chatRows.add(Map.of("id_chat", id, "tipo", group ? "Gruppo" : "DirectMessage"));
+            if (group) groupRows.add(Map.of("id_chat", id, "nome", "gruppo" + id));
+            for (int k = 0; k < (group ? 8 : 2); k++) {
+                int userId = (id * 31 + k * 997) % 100_000 + 1;
+                memberRows.add(Map.of("id_chat", id, "id_utente", userId, "username", "user" + userId, "password", "pw", "status", 0));
+            }
+        }
+        Timestamp time = new Timestamp(System.currentTimeMillis());
+        StubDriver.setRows("FROM chat ORDER", p -> chatRows);
+        StubDriver.setRows("FROM chatutente", p -> memberRows);
+        StubDriver.setRows("FROM gruppo", p -> groupRows);
+        StubDriver.setRows("FROM messaggio WHERE id_messaggio >", p -> {
+            long after = (Long) p.get(1);
+            long last = Math.min(messageCount, after + (Integer) p.get(2));
+            List<Map<String, Object>> rows = new ArrayList<>((int) Math.max(0, last - after));
+            for (long id = after + 1; id <= last; id++) {
+                rows.add(Map.of("id_messaggio", id, "id_chat", (int) (id % chatCount) + 1, "content", "ciao come va? " + id % 100,
+                        "id_utente", (int) (id % 100_000) + 1, "time", time));
+            }
+            return rows;
+        });
+        StubDriver.setLatencyMicros(latencyUs);
+        try {
+            DBManager db = new DBManager();
+            int page = Integer.getInteger("bench.loadPageSize", 10_000);
+
+            long trips = StubDriver.getExecutions();
+            long start = System.nanoTime();
+            Map<Integer, Chat> chats = new HashMap<>();
+            for (Chat c : db.getAllChats()) chats.put(c.getID(), c);
+            loadResult("load.chats chats=" + chatCount + " latencyUs=" + latencyUs, start, StubDriver.getExecutions() - trips);
+
+            trips = StubDriver.getExecutions();
+            start = System.nanoTime();
+            long after = 0;
+            int loaded = 0;
+            List<Message> batch;
+            do {
+                batch = db.getMessagesAfter(after, page);
+                for (Message m : batch) chats.get(m.getChatID()).addMessage(m);
+                loaded += batch.size();
+                if (!batch.isEmpty()) after = batch.get(batch.size() - 1).getID();
+            } while (batch.size() == page);
+            sink += loaded + chats.size();
+            loadResult("load.messages messages=" + messageCount + " latencyUs=" + latencyUs, start, StubDriver.getExecutions() - trips);
+        } finally {
+            StubDriver.setLatencyMicros(0);
+            StubDriver.clearRows();
+        }
+    }
+
+    private void loadResult(String name, long start, long trips) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        results.put(name, ms);
+        System.out.printf("%-50s %12.1f ms  (%d round trip)%n", name, ms, trips);
+    }
+
+    // occupazione di heap per messaggio, misurata su un milione di messaggi
+    private void footprint() {
+        int n = 1_000_000;
+        Message[] messages = new Message[n];
+        long before = usedHeap();
+        for (int i = 0; i < n; i++) {
+            messages[i] = new Message(i % 1000, "ciao come va? " + (i % 100), i + 1_000_000L, i % 5000);
+        }
+        long after = usedHeap();
+        sink += messages.length;
+        double bytes = (double) (after - before) / n;
+        results.put("message.heapBytes", bytes);
+        System.out.printf("%-50s %12.1f bytes/msg%n", "message.heapBytes", bytes);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // --------------------
+    // HARNESS
+    // --------------------
+    private void bench(String name, Op op) throws Exception {
+        loop(op, WARMUP_MS);
+        double ns = loop(op, MEASURE_MS);
+        report(name, ns);
+    }
+
+    private static double loop(Op op, long millis) throws Exception {
+        long acc = 0;
+        int ops = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000L;
+        long now;
+        do {
+            for (int i = 0; i < 1024; i++) {
+                acc += op.run(ops + i);
+            }
+            ops += 1024;
+            now = System.nanoTime();
+        } while (now < end);
+        sink += acc;
+        return (double) (now - start) / ops;
+    }
+
+    // come bench(), ma con più thread: il risultato è il tempo medio per operazione dell'insieme
+    private void scaling(String name, int threads, Op op) throws Exception {
+        loop(op, WARMUP_MS);
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    long acc = 0;
+                    int n = 0;
+                    long end = start + MEASURE_MS * 1_000_000L;
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < 1024; i++) acc += op.run(n + i);
+                        n += 1024;
+                    }
+                    ops.add(n);
+                    sink += acc;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        report(name, (double) (System.nanoTime() - start) / ops.sum());
+    }
+
+    private void report(String name, double ns) {
+        results.put(name, ns);
+        System.out.printf("%-50s %12.1f ns/op %14.0f ops/s%n", name, ns, 1e9 / ns);
+    }
+
+    // confronta con la baseline: true se nessun caso è peggiorato oltre la tolleranza
+    private boolean compare(Path baseline, double tolerance) throws IOException {
+        boolean ok = true;
+        System.out.println("--- CONFRONTO CON " + baseline + " ---");
+        for (String line : Files.readAllLines(baseline)) {
+            int eq = line.lastIndexOf('=');
+            if (eq < 0) continue;
+            String name = line.substring(0, eq);
+            Double now = results.get(name);
+            if (now == null) continue;
+            double before = Double.parseDouble(line.substring(eq + 1));
+            double delta = (now - before) / before;
+            boolean regression = delta > tolerance;
+            ok &= !regression;
+            System.out.printf("%-50s %+7.1f%% %s%n", name, delta * 100, regression ? "REGRESSIONE" : "");
+        }
+        return ok;
+    }
+
+    private void save(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        results.forEach((name, ns) -> lines.add(name + "=" + ns));
+        Files.write(file, lines);
+    }
+
+    private static int[] ints(String property, String def) {
+        String[] parts = System.getProperty(property, def).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    // DB finto in memoria: l'utente 0 partecipa a chatsPerUser chat su totalChats
+    private static class StubDB extends DBManager {
+        private final int chatsPerUser;
+        private final int totalChats;
+
+        StubDB(int chatsPerUser, int totalChats) {
+            this.chatsPerUser = chatsPerUser;
+            this.totalChats = totalChats;
+        }
+
+        @Override
+        public List<User> getAllUsers() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<Chat> getAllChats() {
+            List<Chat> chats = new ArrayList<>();
+            User u0 = new User(0, "u0", "pw", false);
+            for (int id = 0; id < totalChats; id++) {
+                User other = new User(id + 1, "u" + (id + 1), "pw", false);
+                chats.add(new DM(id, id < chatsPerUser ? u0 : other, new User(-id - 1, "x" + id, "pw", false)));
+            }
+            return chats;
+        }
+
+        @Override
+        public List<Message> getMessagesPage(int chatId, Long beforeId, int limit) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void addMessages(List<Message> messages, LongConsumer inserted) {
+        }
+
+        @Override
+        public List<Chat> getChatsAfter(int afterId) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<User> getUsersAfter(int afterId) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<int[]> getMemberships() {
+            return new ArrayList<>();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // i benchmark non devono toccare il DB vero
+        if (System.getProperty("chat.db.url") == null) System.setProperty("chat.db.url", StubDriver.PREFIX);
+        if (System.getProperty("chat.db.pool.min") == null) System.setProperty("chat.db.pool.min", "0");
+        if (System.getProperty("chat.log.enabled") == null) System.setProperty("chat.log.enabled", "false");
+
+        Benchmarks b = new Benchmarks();
+        for (int size : ints("bench.messageSizes", "32,256,4096")) {
+            b.parsing(size);
+            b.encoding(size);
+        }
+        for (int groupSize : ints("bench.groupSizes", "10,100,1000")) b.groups(groupSize);
+        for (int length : ints("bench.historyLengths", "100,1000")) b.history(length);
+        for (int size : ints("bench.messageSizes", "32,256,4096")) b.messageLog(size);
+        for (int chats : ints("bench.chatsPerUser", "10,100")) b.chatsForUser(chats);
+        for (int latencyUs : ints("bench.dbLatenciesUs", "200,1000")) b.journal(latencyUs);
+        b.bulkLoad(Integer.getInteger("bench.loadChats", 10_000), Integer.getInteger("bench.loadMessages", 1_000_000),
+                Integer.getInteger("bench.loadLatencyUs", 1000));
+        b.rateLimit();
+        b.metrics();
+        for (int groupSize : ints("bench.presenceGroupSizes", "10,100")) {
+            b.presenceStorm(Integer.getInteger("bench.presenceUsers", 10_000), groupSize);
+        }
+        b.search(Integer.getInteger("bench.searchMessages", 1_000_000), Integer.getInteger("bench.searchChats", 10_000));
+        b.footprint();
+        b.startup(Integer.getInteger("bench.startupUsers", 100_000), Integer.getInteger("bench.startupChats", 50_000));
+
+        String save = System.getProperty("bench.save");
+        if (save != null) b.save(Path.of(save));
+
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.20"));
+            if (!b.compare(Path.of(baseline), tolerance)) System.exit(1);
+        }
+    }
+}
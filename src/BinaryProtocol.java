@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Framing binario negoziato. Il client apre la connessione inviando il byte MAGIC,
+// il server risponde con MAGIC e da quel momento entrambi usano frame
+// [lunghezza varint][tipo][corpo] invece di righe di testo.
+public final class BinaryProtocol {
+    public static final int MAGIC = 0xC5;
+
+    public static final byte TEXT = 1;    // testo UTF-8: login, comandi e risposte
+    public static final byte SEND = 2;    // client → server: varint chatId + contenuto UTF-8
+    public static final byte DELIVER = 3; // server → client: varint chatId + varint id messaggio + varint seq + varint senderId + contenuto UTF-8
+                                          // l'id è lo stesso su ogni nodo, nei recuperi e in /open: serve a scartare i
+                                          // duplicati (gli id arrivano a blocchi e non sono contigui). seq cresce di 1 per
+                                          // ogni messaggio della chat: un salto indica un messaggio perso. Con più nodi
+                                          // che scrivono la stessa chat due messaggi possono avere la stessa seq
+                                          // (vedi ChatManager.nextSeq); 0 per i messaggi salvati prima della seq
+
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private BinaryProtocol() {
+    }
+
+    // legge un varint senza consumare nulla se i byte non sono ancora arrivati tutti:
+    // restituisce -1 se il varint è incompleto
+    public static int peekVarint(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int i = 0, pos = buf.position(); i < 5; i++, pos++) {
+            if (pos >= buf.limit()) return -1;
+            byte b = buf.get(pos);
+            value |= (b & 0x7F) << (7 * i);
+            if (b >= 0) return value;
+        }
+        throw new IOException("Varint non valido");
+    }
+
+    // legge un varint senza andare oltre end (fine del frame)
+    public static int readVarint(ByteBuffer buf, int end) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            if (buf.position() >= end) throw new IOException("Varint non valido");
+            byte b = buf.get();
+            value |= (b & 0x7F) << (7 * i);
+            if (b >= 0) return value;
+        }
+        throw new IOException("Varint non valido");
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static void writeVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static void writeVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+}
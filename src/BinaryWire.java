@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Frame BinaryProtocol verso il client. I frame vengono costruiti in un unico
+// ByteBuffer riutilizzato e scritti sullo stream al flush.
+// Il primo flush invia anche il byte MAGIC che conferma la negoziazione.
+public class BinaryWire implements Wire {
+    private final OutputStream out;
+    private ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+    public BinaryWire(OutputStream out) {
+        this.out = out;
+        buffer.put((byte) BinaryProtocol.MAGIC);
+    }
+
+    @Override
+    public void writeText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        frame(BinaryProtocol.TEXT, 0, 0, 0, 0, bytes, false);
+    }
+
+    @Override
+    public void writeMessage(int chatId, int senderId, long messageId, long seq, byte[] content) throws IOException {
+        frame(BinaryProtocol.DELIVER, chatId, senderId, messageId, seq, content, true);
+    }
+
+    private void frame(byte type, int chatId, int senderId, long messageId, long seq, byte[] payload, boolean ids) throws IOException {
+        int length = 1 + payload.length;
+        if (ids) length += BinaryProtocol.varintSize(chatId) + BinaryProtocol.varintSize(messageId)
+                + BinaryProtocol.varintSize(seq) + BinaryProtocol.varintSize(senderId);
+        int total = BinaryProtocol.varintSize(length) + length;
+        if (buffer.remaining() < total) {
+            flushBuffer();
+            if (buffer.capacity() < total) buffer = ByteBuffer.allocate(total);
+        }
+
+        BinaryProtocol.writeVarint(buffer, length);
+        buffer.put(type);
+        if (ids) {
+            BinaryProtocol.writeVarint(buffer, chatId);
+            BinaryProtocol.writeVarint(buffer, messageId);
+            BinaryProtocol.writeVarint(buffer, seq);
+            BinaryProtocol.writeVarint(buffer, senderId);
+        }
+        buffer.put(payload);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -1,27 +1,85 @@
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class Chat {
+    // quanti messaggi recenti restano in memoria per ogni chat
+    public static final int RECENT_MESSAGES = Integer.getInteger("chat.history.recent", 100);
+    // messaggi al secondo per chat, con picchi fino a burst; perSec = 0 disattiva il limite
+    private static final double RATE_PER_SEC = Double.parseDouble(System.getProperty("chat.limit.chatPerSec", "100"));
+    private static final double RATE_BURST = Double.parseDouble(System.getProperty("chat.limit.chatBurst", "200"));
+
     private int ID;
-    private List<Message> messaggi;
+    private MessageBuffer messaggi;
+    private boolean historyLoaded;
+    private long seq = -1; // ultima sequenza assegnata; -1 finché initSeq() non la legge dal DB
     private List<User> participants;
+    private final TokenBucket rateLimit = RATE_PER_SEC > 0 ? new TokenBucket(RATE_BURST, RATE_PER_SEC) : null;
 
     public Chat(int ID) {
         this.ID = ID;
-        this.messaggi = new ArrayList<>();
-        this.participants = new ArrayList<>();
+        this.messaggi = new MessageBuffer(RECENT_MESSAGES);
+        this.participants = new CopyOnWriteArrayList<>();
     }
 
     public abstract List<User> getParticipants();
 
-    public List<Message> getMessaggi() {
-        return messaggi;
+    // copia degli ultimi messaggi in memoria, dal più vecchio al più recente
+    public synchronized List<Message> getMessaggi() {
+        return messaggi.toList();
+    }
+
+    public synchronized List<Message> getRecentMessages(int n) {
+        return messaggi.tail(n);
     }
 
-    public void addMessage(Message message) {
+    public synchronized void addMessage(Message message) {
         messaggi.add(message);
     }
 
+    // sostituisce la cache con i messaggi più recenti letti dal DB
+    public synchronized void loadHistory(List<Message> recent) {
+        messaggi.clear();
+        for (Message m : recent) {
+            messaggi.add(m);
+        }
+        historyLoaded = true;
+    }
+
+    // libera la cache di una chat poco usata; verrà ricaricata al prossimo accesso
+    public synchronized void evictHistory() {
+        messaggi.clear();
+        historyLoaded = false;
+    }
+
+    // numero di sequenza per chat (1, 2, 3...): lo assegna il worker della chat, dopo initSeq().
+    // Il contatore sopravvive a evictHistory(): i messaggi ancora nel journal non sono nel DB
+    public synchronized long nextSeq() {
+        return ++seq;
+    }
+
+    public synchronized boolean isSeqInitialized() {
+        return seq >= 0;
+    }
+
+    // last = sequenza più alta già salvata per la chat
+    public synchronized void initSeq(long last) {
+        seq = Math.max(seq, last);
+    }
+
+    // sequenza di un messaggio scritto da un altro nodo: le prossime assegnate da qui partono dopo
+    public synchronized void observeSeq(long s) {
+        if (seq >= 0 && s > seq) seq = s;
+    }
+
+    // null se il limite per chat è disattivato
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public synchronized boolean isHistoryLoaded() {
+        return historyLoaded;
+    }
+
     public void addParticipant(User u) {
         participants.add(u);
     }
@@ -41,4 +99,4 @@ public abstract class Chat {
     public void setID(int ID) {
         this.ID = ID;
     }
-}
\ No newline at end of file
+}
@@ -1,22 +1,79 @@
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatManager{
+    private static final int MAX_HOT_CHATS = Integer.getInteger("chat.history.hotChats", 10000);
+    private static final int LOG_CATCH_UP_PAGE = 1000;
+
     private Map<Integer, Chat> chats;
     private Map<Integer, DM> direct;
     private Map<Integer, Gruppo> groups;
+    private Map<Integer, Set<Integer>> memberships; // id utente → id delle sue chat
     private DBManager dbManager;
+    private MessageJournal journal;
+    private MessageLog log; // null se disabilitato
+    private ChatWorkers workers;
+    private IdAllocator messageIds;
+    private volatile DeliveryCursors cursors; // null nei benchmark
+    private SearchIndex search; // null se disabilitato
+    private volatile AdmissionController admission; // null nei benchmark
+
+    // chat con la cronologia recente in memoria, in ordine di accesso (LRU)
+    private final Map<Integer, Chat> hotChats = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Chat> eldest) {
+            if (size() > MAX_HOT_CHATS) {
+                eldest.getValue().evictHistory();
+                return true;
+            }
+            return false;
+        }
+    };
 
     public ChatManager(){
-        chats = new HashMap<>();
-        direct = new HashMap<>();
-        groups = new HashMap<>();
-        dbManager = new DBManager();
+        this(new DBManager());
+    }
+
+    // permette di usare un DBManager alternativo (es. nei benchmark)
+    public ChatManager(DBManager dbManager){
+        this(dbManager, null);
+    }
+
+    // con uno snapshot si parte da quello e dal DB si legge solo il delta
+    public ChatManager(DBManager dbManager, Snapshot snapshot){
+        chats = new ConcurrentHashMap<>();
+        direct = new ConcurrentHashMap<>();
+        groups = new ConcurrentHashMap<>();
+        memberships = new ConcurrentHashMap<>();
+        this.dbManager = dbManager;
+        journal = MessageJournal.fromSystemProperties(dbManager);
+        log = MessageLog.fromSystemProperties();
+        search = SearchIndex.fromSystemProperties();
+        workers = ChatWorkers.fromSystemProperties();
+        messageIds = new IdAllocator(dbManager, "messaggio", "id_messaggio", Integer.getInteger("chat.ids.blockSize", 1000));
 
         try {
-            loadChatsFromDB();
+            dbManager.createSeqColumn();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Impossibile aggiungere la colonna seq ai messaggi");
+        }
+
+        try {
+            if (snapshot != null) {
+                loadChatsFromSnapshot(snapshot);
+            } else {
+                loadChatsFromDB();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.out.println("Errore nel caricamento delle chat dal database");
@@ -36,6 +93,8 @@ public class ChatManager{
 
                 chats.put(dm.getID(), dm);
                 direct.put(dm.getID(), dm);
+                index(u1, dm);
+                index(u2, dm);
 
                 return dm;
             } catch (Exception e) {
@@ -60,6 +119,7 @@ public class ChatManager{
 
             chats.put(g.getID(), g);
             groups.put(g.getID(), g);
+            index(creator, g);
 
             return g;
         } catch (Exception e){
@@ -68,33 +128,352 @@ public class ChatManager{
         return null;
     }
 
+    // aggiunge il messaggio alla chat, lo scrive nel log locale e lo accoda per il salvataggio nel DB
+    public CompletableFuture<Void> storeMessage(Chat chat, Message msg) throws SQLException {
+        ensureHistoryLoaded(chat);
+        chat.addMessage(msg);
+        if (log != null) log.append(msg);
+        if (search != null) search.add(msg);
+        return journal.append(msg);
+    }
+
+    // messaggi da mostrare con /open: i limit più recenti con id < beforeId (o i più recenti
+    // in assoluto). La cache in memoria basta per le pagine recenti, poi il log locale, il resto
+    // arriva dal DB.
+    public List<Message> getHistory(Chat chat, Long beforeId, int limit) throws SQLException {
+        ensureHistoryLoaded(chat);
+        if (beforeId == null) {
+            List<Message> recent = chat.getRecentMessages(limit);
+            if (recent.size() >= limit || recent.size() < Chat.RECENT_MESSAGES) {
+                return recent;
+            }
+        }
+        if (log != null) {
+            List<Message> page = beforeId == null
+                    ? log.recent(chat.getID(), limit)
+                    : log.before(chat.getID(), beforeId, limit);
+            if (page.size() >= limit) return page;
+        }
+        return dbManager.getMessagesPage(chat.getID(), beforeId, limit);
+    }
+
+    // i primi limit messaggi con id maggiore di afterId, in ordine crescente: per scorrere a pagine
+    // quelli non ancora visti. Dalla memoria se la cronologia recente arriva fino ad afterId, se no dal DB
+    public List<Message> getMessagesAfter(Chat chat, long afterId, int limit) throws SQLException {
+        ensureHistoryLoaded(chat);
+        List<Message> recent = chat.getMessaggi();
+        if (recent.size() < Chat.RECENT_MESSAGES || (!recent.isEmpty() && recent.get(0).getID() <= afterId)) {
+            List<Message> page = new ArrayList<>();
+            for (Message m : recent) {
+                if (m.getID() > afterId && page.size() < limit) page.add(m);
+            }
+            return page;
+        }
+        return dbManager.scanMessages(chat.getID(), afterId, limit);
+    }
+
+    // messaggi per coppie [id chat, id messaggio], nello stesso ordine: dalla memoria o dal log
+    // se ci sono, gli altri con una sola query al DB
+    public List<Message> getMessages(List<long[]> refs) throws SQLException {
+        Map<Long, Message> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (long[] ref : refs) {
+            Message m = findLocal((int) ref[0], ref[1]);
+            if (m != null) found.put(ref[1], m);
+            else missing.add(ref[1]);
+        }
+        if (!missing.isEmpty()) {
+            for (Message m : dbManager.getMessagesByIds(missing)) found.put(m.getID(), m);
+        }
+        List<Message> result = new ArrayList<>();
+        for (long[] ref : refs) {
+            Message m = found.get(ref[1]);
+            if (m != null) result.add(m);
+        }
+        return result;
+    }
+
+    private static boolean inHistory(Chat chat, long id) {
+        for (Message m : chat.getMessaggi()) {
+            if (m.getID() == id) return true;
+        }
+        return false;
+    }
+
+    private boolean inLog(int chatId, long id) {
+        List<Message> page = log.before(chatId, id + 1, 1);
+        return !page.isEmpty() && page.get(0).getID() == id;
+    }
+
+    private Message findLocal(int chatId, long id) {
+        Chat chat = chats.get(chatId);
+        if (chat != null) {
+            for (Message m : chat.getMessaggi()) {
+                if (m.getID() == id) return m;
+            }
+        }
+        if (log != null) {
+            List<Message> page = log.before(chatId, id + 1, 1);
+            if (!page.isEmpty() && page.get(0).getID() == id) return page.get(0);
+        }
+        return null;
+    }
+
+    // indice di ricerca costruito dalla cronologia nel DB, in parallelo sulle chat
+    public void buildSearchIndex() throws SQLException {
+        if (search == null) return;
+        long start = System.currentTimeMillis();
+        search.build(dbManager::scanMessages, chats.values(), dbManager.getMaxMessageId(),
+                Integer.getInteger("chat.search.threads", Runtime.getRuntime().availableProcessors()));
+        System.out.println("Indice di ricerca: " + search.getTermCount() + " termini in "
+                + (System.currentTimeMillis() - start) + " ms (~" + search.getMemoryBytes() / (1024 * 1024) + " MB)");
+    }
+
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    // id univoco per un nuovo messaggio, senza accessi al DB finché il blocco non finisce
+    public long nextMessageId() {
+        return messageIds.next();
+    }
+
+    // prossimo numero di sequenza della chat, da chiamare sul suo worker. Parte da MAX(seq) nel DB
+    // (o dal log locale, se è più avanti). In un cluster due nodi che scrivono la stessa chat
+    // assegnano la sequenza ognuno per conto suo: observeSeq() riallinea il contatore solo quando
+    // arriva il messaggio dell'altro nodo, quindi due messaggi scritti insieme possono avere la
+    // stessa seq. L'ordine è garantito solo tra i messaggi scritti dallo stesso nodo
+    public long nextSeq(Chat chat) throws SQLException {
+        ensureHistoryLoaded(chat);
+        return chat.nextSeq();
+    }
+
+    public int getMessageIdBlockSize() {
+        return messageIds.getBlockSize();
+    }
+
+    // esegue il compito sul worker che possiede la chat (ordine totale per chat)
+    public void execute(Chat chat, Runnable task) {
+        workers.execute(chat.getID(), task);
+    }
+
+    public ChatWorkers getWorkers() {
+        return workers;
+    }
+
+    // carica gli ultimi messaggi della chat se non sono in memoria e la segna come usata di recente.
+    // Prima prova il log locale, completato con i messaggi del DB successivi alla sua coda; se è
+    // vuoto li prende dal DB e li copia nel log.
+    public void ensureHistoryLoaded(Chat chat) throws SQLException {
+        synchronized (chat) {
+            if (!chat.isHistoryLoaded()) {
+                List<Message> recent = log != null ? log.recent(chat.getID(), Chat.RECENT_MESSAGES) : List.of();
+                if (recent.isEmpty()) {
+                    recent = dbManager.getMessagesPage(chat.getID(), null, Chat.RECENT_MESSAGES);
+                    if (log != null) log.appendAll(recent);
+                } else {
+                    recent = catchUpLog(chat.getID(), recent);
+                }
+                chat.loadHistory(recent);
+            }
+            if (!chat.isSeqInitialized()) {
+                long last = dbManager.getMaxSeq(chat.getID());
+                for (Message m : chat.getMessaggi()) last = Math.max(last, m.getSeq());
+                chat.initSeq(last);
+            }
+        }
+        synchronized (hotChats) {
+            hotChats.put(chat.getID(), chat);
+        }
+    }
+
+    // il log può essere rimasto indietro rispetto al DB (messaggi scritti da altri nodi o da
+    // strumenti esterni mentre questo nodo era spento o non scriveva la chat): si copiano nel log,
+    // a pagine, i messaggi con id oltre la sua coda. Restituisce gli ultimi RECENT_MESSAGES
+    private List<Message> catchUpLog(int chatId, List<Message> recent) throws SQLException {
+        List<Message> tail = new ArrayList<>(recent);
+        long last = recent.get(recent.size() - 1).getID();
+        while (true) {
+            List<Message> page = dbManager.scanMessages(chatId, last, LOG_CATCH_UP_PAGE);
+            if (page.isEmpty()) break;
+            log.appendAll(page);
+            tail.addAll(page);
+            if (tail.size() > Chat.RECENT_MESSAGES) {
+                tail = new ArrayList<>(tail.subList(tail.size() - Chat.RECENT_MESSAGES, tail.size()));
+            }
+            last = page.get(page.size() - 1).getID();
+            if (page.size() < LOG_CATCH_UP_PAGE) break;
+        }
+        return tail;
+    }
+
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    public void setAdmission(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public void setCursors(DeliveryCursors cursors) {
+        this.cursors = cursors;
+    }
+
+    public DeliveryCursors getCursors() {
+        return cursors;
+    }
+
+    // da chiamare allo spegnimento del server: scrive i messaggi ancora in coda. Prima i worker
+    // passano al journal i messaggi già accettati, poi il journal si svuota mentre i worker sono
+    // ancora attivi (con ACK_AFTER_FLUSH l'invio torna sul worker), infine si fermano i worker
+    public void shutdown() {
+        workers.drain();
+        journal.shutdown();
+        workers.shutdown();
+        if (log != null) log.flush();
+    }
+
     public Chat getChatByID(int id){
         return chats.get(id);
     }
 
+    // aggiunge un utente a un gruppo esistente, nel DB e nell'indice
+    public void addParticipant(Chat c, User u) throws SQLException {
+        c.addParticipant(u);
+        dbManager.addUserToChat(c.getID(), u.getID());
+        index(u, c);
+    }
+
+    // risponde dall'indice in memoria: O(chat dell'utente)
     public List<Chat> getChatsForUser(User u) {
         List<Chat> result = new ArrayList<>();
-        for (Chat c : chats.values()) {
-            if (c.getParticipants().contains(u)) {
-                result.add(c);
-            }
+        Set<Integer> ids = memberships.get(u.getID());
+        if (ids == null) return result;
+        for (int id : ids) {
+            Chat c = chats.get(id);
+            if (c != null) result.add(c);
         }
         return result;
     }
 
+    public boolean isParticipant(User u, Chat c) {
+        Set<Integer> ids = memberships.get(u.getID());
+        return ids != null && ids.contains(c.getID());
+    }
+
+    private void index(User u, Chat c) {
+        memberships.computeIfAbsent(u.getID(), k -> ConcurrentHashMap.newKeySet()).add(c.getID());
+    }
+
+    // tutte le chat, ad esempio per scrivere uno snapshot
+    public Collection<Chat> getChats() {
+        return chats.values();
+    }
+
     public void loadChatsFromDB() throws Exception {
+        clear();
+        for (Chat c : dbManager.getAllChats()) {
+            put(c);
+        }
+        System.out.println("Caricate " + chats.size() + " chat dal database");
+    }
+
+    // chat dello snapshot, più quelle create dopo (id > maxChatId) e le partecipazioni
+    // aggiunte ai gruppi esistenti
+    public void loadChatsFromSnapshot(Snapshot snapshot) throws SQLException {
+        clear();
+        for (Chat c : snapshot.getChats()) {
+            put(c);
+        }
+        List<Chat> nuove = dbManager.getChatsAfter(snapshot.getMaxChatId());
+        for (Chat c : nuove) {
+            put(c);
+        }
+        int aggiunte = syncMemberships();
+        System.out.println("Caricate " + chats.size() + " chat dallo snapshot (" + nuove.size() +
+                " nuove e " + aggiunte + " partecipazioni dal database)");
+    }
+
+    // --------------------
+    // SINCRONIZZAZIONE INCREMENTALE (usata da DeltaSync)
+    // --------------------
+    // aggiunge una chat letta dal DB se non è già presente; true se è nuova
+    public boolean applyChat(Chat c) {
+        if (chats.containsKey(c.getID())) return false;
+        put(c);
+        return true;
+    }
+
+    // aggiunge ai gruppi le partecipazioni presenti nel DB ma non nell'indice.
+    // chatutente non ha un id progressivo: si rilegge tutta, ma solo come coppie di interi
+    public int syncMemberships() throws SQLException {
+        List<int[]> mancanti = new ArrayList<>();
+        Set<Integer> userIds = new HashSet<>();
+        for (int[] pair : dbManager.getMemberships()) {
+            Set<Integer> ids = memberships.get(pair[1]);
+            if ((ids == null || !ids.contains(pair[0])) && chats.get(pair[0]) instanceof Gruppo) {
+                mancanti.add(pair);
+                userIds.add(pair[1]);
+            }
+        }
+        if (mancanti.isEmpty()) return 0;
+
+        Map<Integer, User> users = dbManager.getUsersByIds(userIds);
+        int aggiunte = 0;
+        for (int[] pair : mancanti) {
+            User u = users.get(pair[1]);
+            Chat c = chats.get(pair[0]);
+            // l'utente può essere già tra i partecipanti come istanza diversa (aggiunto da questa istanza)
+            if (u != null && c.getParticipants().stream().noneMatch(p -> p.getID() == u.getID())) {
+                c.addParticipant(u);
+                aggiunte++;
+            }
+            if (u != null) index(u, c);
+        }
+        return aggiunte;
+    }
+
+    // messaggio scritto da un'altra istanza: va nella cronologia in memoria e nel log locale
+    // solo se la chat li ha già, altrimenti lo leggerà il prossimo caricamento dal DB.
+    // Passa dal worker della chat, in ordine con i messaggi inviati da qui. Un messaggio già nel
+    // log (rilettura dopo un riavvio, o copiato dal DB al caricamento della chat) si salta
+    public void applyMessage(Message msg) {
+        Chat chat = chats.get(msg.getChatID());
+        if (chat == null) return;
+        workers.execute(chat.getID(), () -> {
+            synchronized (chat) {
+                chat.observeSeq(msg.getSeq());
+                if (log != null && inLog(chat.getID(), msg.getID())) return;
+                if (chat.isHistoryLoaded() && !inHistory(chat, msg.getID())) chat.addMessage(msg);
+                if (log != null && (chat.isHistoryLoaded() || !log.isEmpty(chat.getID()))) log.append(msg);
+            }
+            if (search != null) search.add(msg);
+        });
+    }
+
+    private void clear() {
         chats.clear();
         direct.clear();
         groups.clear();
+        memberships.clear();
+        synchronized (hotChats) {
+            hotChats.clear();
+        }
+    }
 
-        for (Chat c : dbManager.getAllChats()) {
-            chats.put(c.getID(), c);
-            if (c.getChatType().equals("DirectMessage")) {
-                direct.put(c.getID(), (DM) c);
-            } else if (c.getChatType().equals("Gruppo")) {
-                groups.put(c.getID(), (Gruppo) c);
-            }
+    private void put(Chat c) {
+        chats.put(c.getID(), c);
+        for (User u : c.getParticipants()) {
+            index(u, c);
+        }
+        if (c.getChatType().equals("DirectMessage")) {
+            direct.put(c.getID(), (DM) c);
+        } else if (c.getChatType().equals("Gruppo")) {
+            groups.put(c.getID(), (Gruppo) c);
         }
-        System.out.println("Caricate " + chats.size() + " chat dal database");
     }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+// Esecuzione partizionata per chat: ogni chat appartiene sempre allo stesso worker
+// (un thread), che esegue in ordine i compiti di quella chat. Chi invia un messaggio lo
+// consegna al worker tramite una coda senza lock (più produttori, un consumatore);
+// così ogni chat ha un ordine totale dei messaggi e chat diverse procedono in parallelo.
+public class ChatWorkers {
+    private final Worker[] workers;
+    private volatile boolean running = true;
+
+    public ChatWorkers(int threads) {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("chat-worker-" + i);
+        }
+        for (Worker w : workers) w.thread.start();
+    }
+
+    public static ChatWorkers fromSystemProperties() {
+        return new ChatWorkers(Integer.getInteger("chat.workers", Runtime.getRuntime().availableProcessors()));
+    }
+
+    // esegue il compito sul worker della chat, dopo quelli già accodati per la stessa chat
+    public void execute(int chatId, Runnable task) {
+        workers[indexOf(chatId)].submit(task);
+    }
+
+    public int getThreads() {
+        return workers.length;
+    }
+
+    // compiti in attesa su tutti i worker
+    public int getPending() {
+        int n = 0;
+        for (Worker w : workers) n += w.queue.size();
+        return n;
+    }
+
+    // aspetta che i worker abbiano eseguito i compiti accodati finora, senza fermarli
+    public void drain() {
+        CountDownLatch done = new CountDownLatch(workers.length);
+        for (Worker w : workers) w.submit(done::countDown);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // esegue i compiti già accodati e ferma i worker
+    public void shutdown() {
+        running = false;
+        for (Worker w : workers) LockSupport.unpark(w.thread);
+        for (Worker w : workers) {
+            try {
+                w.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // gli id delle chat sono consecutivi: si mescolano i bit per distribuirle tra i worker
+    private int indexOf(int chatId) {
+        int h = chatId * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), workers.length);
+    }
+
+    private class Worker implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean parked;
+
+        Worker(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            queue.offer(task);
+            if (parked) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                    continue;
+                }
+                // parked va scritto prima di ricontrollare la coda: un produttore che accoda
+                // nel frattempo vede parked = true e sveglia il worker
+                parked = true;
+                if (queue.isEmpty() && running) LockSupport.park(this);
+                parked = false;
+            }
+        }
+    }
+}
@@ -1,22 +1,95 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ClientHandler implements Runnable, ProtocolDecoder.Listener {
+    private enum Stato { MENU, LOGIN_USERNAME, LOGIN_PASSWORD, REGISTER_USERNAME, REGISTER_PASSWORD, AUTENTICAZIONE, CONNESSO }
 
-public class ClientHandler implements Runnable {
     private Socket socket;
+    private Closeable connection;
+    private String remoteAddress;
     private ChatManager chatManager;
     private UserManager userManager;
     private User user;
-    private BufferedReader in;
-    private PrintWriter out;
-    private DBManager dbManager = new DBManager();
+    private OutputStream socketOut;
+    private OutboundQueue outbound;
+
+    // la risposta a ogni riga del client viene costruita qui e inviata in un solo blocco
+    private final StringWriter response = new StringWriter();
+    private final PrintWriter out = new PrintWriter(response);
+    // le righe del client e il completamento asincrono del login non elaborano mai in parallelo
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile Stato stato = Stato.MENU;
+    private final TokenBucket sendLimit = USER_RATE_PER_SEC > 0 ? new TokenBucket(USER_RATE_BURST, USER_RATE_PER_SEC) : null;
+    private long lastThrottleNotice; // sotto lock
+    // chat di cui si stanno ancora inviando i messaggi arrivati mentre l'utente era offline
+    // → messaggi in diretta tenuti da parte nel frattempo (usati solo sul worker della chat)
+    private final Map<Integer, List<Message>> catchingUp = new ConcurrentHashMap<>();
+    private String pendingUsername;
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int SEARCH_LIMIT = Integer.getInteger("chat.search.limit", 20);
+    // messaggi al secondo per utente, con picchi fino a burst; perSec = 0 disattiva il limite
+    private static final double USER_RATE_PER_SEC = Double.parseDouble(System.getProperty("chat.limit.userPerSec", "10"));
+    private static final double USER_RATE_BURST = Double.parseDouble(System.getProperty("chat.limit.userBurst", "20"));
+    // utenti che possono usare /stats, separati da virgola; se non impostato nessuno
+    // (le metriche restano leggibili dall'endpoint HTTP locale)
+    private static final Set<String> ADMINS = parseList(System.getProperty("chat.admin.users"));
+
+    // metriche
+    private static final Metrics.Counter CONNECTIONS_OPENED = Metrics.counter("chat_connections_opened_total");
+    private static final Metrics.Counter CONNECTIONS_CLOSED = Metrics.counter("chat_connections_closed_total");
+    private static final Metrics.Counter MESSAGES_IN = Metrics.counter("chat_messages_in_total");
+    private static final Metrics.Counter THROTTLED_USER = Metrics.counter("chat_messages_throttled_total", "reason", "user");
+    private static final Metrics.Counter THROTTLED_CHAT = Metrics.counter("chat_messages_throttled_total", "reason", "chat");
+    private static final Metrics.Counter THROTTLED_OVERLOAD = Metrics.counter("chat_messages_throttled_total", "reason", "overload");
+    private static final Metrics.Histogram FANOUT = Metrics.histogram("chat_fanout_recipients");
+    // una serie per ogni comando noto: un client non può creare metriche inventando comandi
+    private static final Map<String, Metrics.Histogram> COMMAND_LATENCY = new HashMap<>();
+    private static final Metrics.Histogram OTHER_COMMAND_LATENCY = Metrics.histogram("chat_command_latency_ns", "cmd", "altro");
+
+    static {
+        for (String cmd : List.of("/help", "/list", "/open", "/newdm", "/newgroup", "/add", "/who", "/search", "/stats")) {
+            COMMAND_LATENCY.put(cmd, Metrics.histogram("chat_command_latency_ns", "cmd", cmd));
+        }
+    }
 
-    private static AtomicInteger userCounter = new AtomicInteger(1);
-    private static AtomicInteger messageCounter = new AtomicInteger(1);
+    private static Set<String> parseList(String value) {
+        if (value == null || value.isBlank()) return Set.of();
+        Set<String> names = new HashSet<>();
+        for (String s : value.split(",")) if (!s.isBlank()) names.add(s.trim());
+        return names;
+    }
 
+    // connessione bloccante: il handler legge dal socket nel proprio thread
     public ClientHandler(Socket socket, ChatManager chatManager, UserManager userManager) {
         this.socket = socket;
+        this.connection = socket;
+        this.remoteAddress = socket.getInetAddress().getHostAddress();
+        this.chatManager = chatManager;
+        this.userManager = userManager;
+    }
+
+    // connessione gestita da un motore esterno (es. NIO): le righe arrivano da handleLine()
+    public ClientHandler(OutputStream socketOut, Closeable connection, String remoteAddress,
+                         ChatManager chatManager, UserManager userManager) {
+        this.socketOut = socketOut;
+        this.connection = connection;
+        this.remoteAddress = remoteAddress;
         this.chatManager = chatManager;
         this.userManager = userManager;
     }
@@ -24,120 +97,371 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // --------------------
-            // LOGIN / REGISTER ORIGINALI
-            // --------------------
-            while (true) {
-                out.println("Benvenuto! Digita 'login' o 'register':");
-                String command = in.readLine();
-                if (command == null) continue;
-
-                if (command.equalsIgnoreCase("login")) {
-                    out.println("Username:");
-                    String username = in.readLine();
-                    out.println("Password:");
-                    String password = in.readLine();
-
-                    User u = userManager.getUser(username);
-                    if (u != null && u.getPassword().equals(password)) {
-                        user = u;
-                        user.setStatus(true);
-                        break;
-                    } else {
-                        out.println("Login fallito. Prova di nuovo.");
-                    }
+            InputStream in = socket.getInputStream();
+            socketOut = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
 
-                } else if (command.equalsIgnoreCase("register")) {
-                    out.println("Scegli un username:");
-                    String username = in.readLine();
-                    out.println("Scegli una password:");
-                    String password = in.readLine();
+            onConnect();
 
-                    if (userManager.getUser(username) == null) {
-                        int id = userCounter.getAndIncrement();
+            // righe di testo o frame binari, a seconda del primo byte ricevuto
+            ProtocolDecoder decoder = new ProtocolDecoder();
+            byte[] buf = new byte[8 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                decoder.feed(ByteBuffer.wrap(buf, 0, n), this);
+            }
 
-                        // crea User anonimo come nel tuo codice originale
-                        user = new User(id, username, password, true) {
-                            // classe astratta anonima
-                        };
-                        userManager.register(user);
-                        break;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            onDisconnect();
+        }
+    }
 
-                    } else {
-                        out.println("Username già esistente. Prova di nuovo.");
-                    }
+    public void onConnect() {
+        CONNECTIONS_OPENED.increment();
+        outbound = OutboundQueue.fromSystemProperties(new TextWire(socketOut), this::close, this::onWritten);
+        prompt();
+        flushResponse();
+    }
 
-                } else {
-                    out.println("Comando non valido.");
-                }
-            }
+    public void onDisconnect() {
+        CONNECTIONS_CLOSED.increment();
+        close();
+        if (outbound != null) outbound.close();
+        if (user != null && userManager.removeClientHandler(user, this)) {
+            user.setStatus(false);
+        }
+    }
 
-            // collega user→handler
-            userManager.setClientHandler(user, this);
-            out.println("Benvenuto, " + user.getUsername() + "! Digita /help per comandi.");
+    // dal thread writer, dopo ogni flush: i cursori di consegna avanzano solo con i messaggi
+    // scritti davvero sul socket, non con quelli pubblicati
+    private void onWritten(Map<Integer, Long> lastIds) {
+        DeliveryCursors cursors = chatManager.getCursors();
+        if (cursors != null && user != null) cursors.written(user.getID(), lastIds);
+    }
 
-            // --------------------
-            // LOOP PRINCIPALE
-            // --------------------
-            String line;
-            while ((line = in.readLine()) != null) {
+    private void close() {
+        try { connection.close(); } catch (Exception ignored) {}
+    }
 
-                // comando /...
-                if (line.startsWith("/")) {
-                    handleCommand(line);
-                    continue;
-                }
+    private void flushResponse() {
+        if (response.getBuffer().isEmpty()) return;
+        outbound.offerResponse(response.toString());
+        response.getBuffer().setLength(0);
+    }
 
-                // messaggio normale
-                String[] parts = line.split("\\|", 2);
-                if (parts.length < 2) {
-                    out.println("Formato messaggio invalido. Usa: ID_CHAT|messaggio");
-                    continue;
-                }
+    private void prompt() {
+        out.println("Benvenuto! Digita 'login' o 'register':");
+    }
 
-                int chatId = Integer.parseInt(parts[0]);
-                String text = parts[1];
+    // il client ha negoziato BinaryProtocol: da qui in poi risposte e messaggi sono frame
+    @Override
+    public void onBinary() {
+        lock.lock();
+        try {
+            outbound.switchWire(new BinaryWire(socketOut));
+            if (stato == Stato.MENU) prompt();
+            flushResponse();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                Chat chat = chatManager.getChatByID(chatId);
-                if (chat == null) {
-                    out.println("Chat non trovata.");
-                    continue;
-                }
+    @Override
+    public void onLine(String line) {
+        handleLine(line);
+    }
 
-                Message msg = new Message(
-                        String.valueOf(user.getID()),
-                        text,
-                        String.valueOf(messageCounter.getAndIncrement()),
-                        String.valueOf(chatId)
-                );
+    // frame SEND: chat e contenuto UTF-8 arrivano già separati, senza parsing della riga né decodifica
+    @Override
+    public void onChatMessage(int chatId, byte[] content) {
+        lock.lock();
+        try {
+            if (stato == Stato.CONNESSO) {
+                sendToChat(chatId, content);
+            } else {
+                out.println("Effettua prima il login.");
+            }
+        } finally {
+            flushResponse();
+            lock.unlock();
+        }
+    }
 
-                chat.addMessage(msg);
+    // elabora una riga ricevuta dal client in base allo stato della sessione
+    public void handleLine(String line) {
+        lock.lock();
+        try {
+            dispatch(line);
+        } finally {
+            flushResponse();
+            lock.unlock();
+        }
+    }
 
-                // invia a tutti i partecipanti
-                for (User u : chat.getParticipants()) {
-                    ClientHandler ch = userManager.getClientHandler(u);
-                    if (ch != null) ch.sendMessage(chat, msg);
-                }
+    private void dispatch(String line) {
+        switch (stato) {
+            case MENU -> handleMenu(line);
+            case LOGIN_USERNAME -> {
+                pendingUsername = line;
+                stato = Stato.LOGIN_PASSWORD;
+                out.println("Password:");
             }
+            case LOGIN_PASSWORD -> handleLogin(pendingUsername, line);
+            case REGISTER_USERNAME -> {
+                pendingUsername = line;
+                stato = Stato.REGISTER_PASSWORD;
+                out.println("Scegli una password:");
+            }
+            case REGISTER_PASSWORD -> handleRegister(pendingUsername, line);
+            case AUTENTICAZIONE -> out.println("Autenticazione in corso, attendi...");
+            case CONNESSO -> handleChatLine(line);
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    // --------------------
+    // LOGIN / REGISTER ORIGINALI
+    // --------------------
+    private void handleMenu(String command) {
+        if (command.equalsIgnoreCase("login")) {
+            stato = Stato.LOGIN_USERNAME;
+            out.println("Username:");
+        } else if (command.equalsIgnoreCase("register")) {
+            stato = Stato.REGISTER_USERNAME;
+            out.println("Scegli un username:");
+        } else if (command.regionMatches(true, 0, "resume ", 0, 7)) {
+            // riconnessione con il token di sessione: nessun hash della password
+            onAuthenticated(userManager.getAuthService().resume(command.substring(7).trim(), remoteAddress), null);
+        } else {
+            out.println("Comando non valido.");
+            prompt();
+        }
+    }
+
+    // l'hash della password gira sul pool di AuthService: il thread di I/O non aspetta
+    private void handleLogin(String username, String password) {
+        stato = Stato.AUTENTICAZIONE;
+        userManager.getAuthService().login(username, password, remoteAddress).whenComplete(this::completeAuth);
+    }
+
+    private void handleRegister(String username, String password) {
+        stato = Stato.AUTENTICAZIONE;
+        userManager.getAuthService().register(username, password, remoteAddress).whenComplete(this::completeAuth);
+    }
+
+    // completamento asincrono: prende il lock come una riga del client e invia la risposta
+    private void completeAuth(AuthService.Result result, Throwable ex) {
+        lock.lock();
+        try {
+            onAuthenticated(result, ex);
         } finally {
-            try { socket.close(); } catch (Exception ignored) {}
-            if (user != null) {
-                user.setStatus(false);
-                userManager.removeClientHandler(user);
+            flushResponse();
+            lock.unlock();
+        }
+    }
+
+    private void onAuthenticated(AuthService.Result result, Throwable ex) {
+        AuthService.Status status = ex != null ? AuthService.Status.ERROR : result.status();
+        if (status == AuthService.Status.OK) {
+            user = result.user();
+            user.setStatus(true);
+            loggedIn();
+            out.println("Token di sessione: " + result.token() + " (usa 'resume <token>' per riconnetterti)");
+            return;
+        }
+
+        switch (status) {
+            case WRONG -> out.println("Login fallito. Prova di nuovo.");
+            case EXISTS -> out.println("Username già esistente. Prova di nuovo.");
+            case THROTTLED -> out.println("Troppi tentativi, riprova più tardi.");
+            case BUSY -> out.println("Server occupato, riprova tra poco.");
+            default -> out.println("Errore durante l'autenticazione.");
+        }
+        stato = Stato.MENU;
+        pendingUsername = null;
+        prompt();
+    }
+
+    private void loggedIn() {
+        stato = Stato.CONNESSO;
+        pendingUsername = null;
+
+        // le chat restano in recupero finché i messaggi persi non sono stati inviati
+        DeliveryCursors cursors = chatManager.getCursors();
+        if (cursors != null) {
+            for (Chat c : chatManager.getChatsForUser(user)) catchingUp.put(c.getID(), new ArrayList<>());
+        }
+
+        // collega user→handler
+        userManager.setClientHandler(user, this);
+        out.println("Benvenuto, " + user.getUsername() + "! Digita /help per comandi.");
+        if (cursors != null) cursors.catchUp(this, user, Set.copyOf(catchingUp.keySet()));
+    }
+
+    // --------------------
+    // LOOP PRINCIPALE
+    // --------------------
+    private void handleChatLine(String line) {
+        // comando /...
+        if (line.startsWith("/")) {
+            handleCommand(line);
+            return;
+        }
+
+        // messaggio normale
+        int sep = line.indexOf('|');
+        if (sep < 0) {
+            out.println("Formato messaggio invalido. Usa: ID_CHAT|messaggio");
+            return;
+        }
+
+        sendToChat(Integer.parseInt(line.substring(0, sep)), line.substring(sep + 1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendToChat(int chatId, byte[] content) {
+        MESSAGES_IN.increment();
+        Chat chat = chatManager.getChatByID(chatId);
+        if (chat == null) {
+            out.println("Chat non trovata.");
+            return;
+        }
+        if (!admit(chat)) return;
+        // l'eventuale lettura dal DB avviene qui e non blocca il worker della chat
+        try {
+            chatManager.ensureHistoryLoaded(chat);
+        } catch (SQLException e) {
+            out.println("Errore nel caricamento della chat.");
+            return;
+        }
+        // backpressure del journal: aspetta questo client, mai il worker della chat
+        try {
+            if (!chatManager.getJournal().awaitSpace()) {
+                out.println("Server occupato, messaggio non salvato. Riprova tra poco.");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // overflow BLOCK: questo client aspetta che i destinatari lenti abbiano spazio in coda,
+        // così il worker della chat non si ferma mai
+        if (outbound.getPolicy() == OutboundQueue.OverflowPolicy.BLOCK) {
+            try {
+                awaitRecipients(chat);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        // id, sequenza, salvataggio e invio li esegue il worker della chat: tutti vedono lo stesso ordine
+        int senderId = user.getID();
+        chatManager.execute(chat, () -> publish(chat, senderId, content));
+    }
+
+    // un'unica scadenza per tutti i destinatari: l'attesa totale resta entro blockTimeoutMs
+    private void awaitRecipients(Chat chat) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(outbound.getBlockTimeoutMs());
+        for (User u : chat.getParticipants()) {
+            ClientHandler ch = userManager.getClientHandler(u);
+            if (ch != null) ch.getOutbound().awaitSpace(deadline);
+        }
+    }
+
+    // sovraccarico globale, limite per utente e per chat: se il messaggio passa nessun lock né allocazione
+    private boolean admit(Chat chat) {
+        AdmissionController admission = chatManager.getAdmission();
+        if (admission != null && admission.isShedding()) {
+            admission.rejected();
+            THROTTLED_OVERLOAD.increment();
+            throttled("Server sovraccarico, messaggio scartato. Riprova tra poco.");
+            return false;
+        }
+        if (sendLimit != null && !sendLimit.tryAcquire()) {
+            THROTTLED_USER.increment();
+            throttled("Stai inviando troppi messaggi, alcuni sono stati scartati. Rallenta.");
+            return false;
+        }
+        TokenBucket chatLimit = chat.getRateLimit();
+        if (chatLimit != null && !chatLimit.tryAcquire()) {
+            THROTTLED_CHAT.increment();
+            throttled("Troppi messaggi nella chat " + chat.getID() + ", alcuni sono stati scartati.");
+            return false;
+        }
+        return true;
+    }
+
+    // al massimo un avviso al secondo: a chi inonda il server non si risponde riga per riga
+    private void throttled(String notice) {
+        long now = System.nanoTime();
+        if (now - lastThrottleNotice < 1_000_000_000L && lastThrottleNotice != 0) return;
+        lastThrottleNotice = now;
+        out.println(notice);
+    }
+
+    // eseguito sul worker della chat
+    private void publish(Chat chat, int senderId, byte[] content) {
+        Message msg;
+        CompletableFuture<Void> stored;
+        try {
+            msg = new Message(senderId, content, chatManager.nextMessageId(), chat.getID(), System.currentTimeMillis(),
+                    chatManager.nextSeq(chat));
+            stored = chatManager.storeMessage(chat, msg);
+        } catch (SQLException | IllegalStateException e) {
+            reply("Errore nel salvataggio del messaggio.");
+            return;
+        }
+        if (chatManager.getJournal().getDurability() == MessageJournal.Durability.ACK_AFTER_FLUSH) {
+            // il worker non aspetta il DB: l'invio torna sul worker quando il blocco è scritto,
+            // nello stesso ordine in cui i messaggi sono stati accodati
+            stored.whenComplete((v, ex) -> chatManager.execute(chat, () -> {
+                if (ex != null) {
+                    reply("Errore nel salvataggio del messaggio.");
+                } else {
+                    fanOut(chat, msg);
+                }
+            }));
+            return;
+        }
+        fanOut(chat, msg);
+    }
+
+    // invia a tutti i partecipanti: direttamente a chi è connesso qui,
+    // tramite il cluster a chi è connesso su un altro nodo
+    private void fanOut(Chat chat, Message msg) {
+        Cluster cluster = userManager.getCluster();
+        List<User> remote = null;
+        List<User> participants = chat.getParticipants();
+        FANOUT.record(participants.size());
+        for (User u : participants) {
+            ClientHandler ch = userManager.getClientHandler(u);
+            if (ch != null) {
+                if (!ch.holdIfCatchingUp(chat.getID(), msg)) ch.sendMessage(chat, msg);
+            } else if (cluster != null && cluster.getNodeOf(u.getID()) != null) {
+                if (remote == null) remote = new ArrayList<>();
+                remote.add(u);
             }
         }
+        if (remote != null) cluster.forward(chat.getID(), msg, remote);
+    }
+
+    // risposta fuori dal ciclo richiesta/risposta (es. da un worker)
+    private void reply(String line) {
+        outbound.offerResponse(line + System.lineSeparator());
     }
 
     // -----------------------------------------------------------
     //     NUOVI COMANDI DEL CLIENT
     // -----------------------------------------------------------
     private void handleCommand(String cmd) {
+        long start = System.nanoTime();
+        runCommand(cmd);
+        int sp = cmd.indexOf(' ');
+        Metrics.Histogram latency = COMMAND_LATENCY.get(sp < 0 ? cmd : cmd.substring(0, sp));
+        (latency != null ? latency : OTHER_COMMAND_LATENCY).recordSince(start);
+    }
+
+    private void runCommand(String cmd) {
         try {
 
             if (cmd.equals("/help")) {
@@ -145,15 +469,19 @@ public class ClientHandler implements Runnable {
                         --- COMANDI DISPONIBILI ---
                         /list                    → elenco chat
                         /open <id>              → mostra messaggi della chat
+                        /open <id> before <msgId> [limit n] → messaggi precedenti
                         /newdm <username>       → crea chat diretta
                         /newgroup <nome>        → crea un gruppo
                         /add <chatID> <user>    → aggiunge utente al gruppo
+                        /who <chatID>           → partecipanti online
+                        /search <chatID|*> <parole> → cerca nei messaggi
+                        /stats                  → metriche del server (solo amministratori)
                         """);
                 return;
             }
 
             if (cmd.equals("/list")) {
-                List<Chat> chats = dbManager.getAllChatsByUser(user.getID());
+                List<Chat> chats = chatManager.getChatsForUser(user);
                 out.println("Le tue chat:");
                 for (Chat c : chats) {
                     out.println(" • ID=" + c.getID() + "  (" + c.getChatType() + ")");
@@ -162,7 +490,16 @@ public class ClientHandler implements Runnable {
             }
 
             if (cmd.startsWith("/open ")) {
-                int id = Integer.parseInt(cmd.split(" ")[1]);
+                // /open <id> [before <msgId>] [limit n]
+                String[] p = cmd.split(" ");
+                int id = Integer.parseInt(p[1]);
+                Long before = null;
+                int limit = DEFAULT_PAGE_SIZE;
+                for (int i = 2; i + 1 < p.length; i += 2) {
+                    if (p[i].equals("before")) before = Long.parseLong(p[i + 1]);
+                    else if (p[i].equals("limit")) limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(p[i + 1])));
+                }
+
                 Chat c = chatManager.getChatByID(id);
 
                 if (c == null) {
@@ -170,9 +507,13 @@ public class ClientHandler implements Runnable {
                     return;
                 }
 
+                List<Message> page = chatManager.getHistory(c, before, limit);
                 out.println("Messaggi della chat " + id + ":");
-                for (Message m : c.getMessaggi()) {
-                    out.println("[" + m.getSenderID() + "] " + m.getContent());
+                for (Message m : page) {
+                    out.println("#" + m.getID() + " [" + m.getSenderID() + "] " + m.getContent());
+                }
+                if (page.size() == limit) {
+                    out.println("Messaggi precedenti: /open " + id + " before " + page.get(0).getID() + " limit " + limit);
                 }
                 return;
             }
@@ -222,17 +563,76 @@ public class ClientHandler implements Runnable {
                     return;
                 }
 
-                if (c.getParticipants().contains(u)) {
+                if (chatManager.isParticipant(u, c)) {
                     out.println("Utente già nel gruppo.");
                     return;
                 }
 
-                c.addParticipant(u);
-                dbManager.addUserToChat(chatID, u.getID());
+                chatManager.addParticipant(c, u);
                 out.println("Utente aggiunto!");
                 return;
             }
 
+            if (cmd.startsWith("/who ")) {
+                Chat c = chatManager.getChatByID(Integer.parseInt(cmd.substring(5).trim()));
+                if (c == null || !chatManager.isParticipant(user, c)) {
+                    out.println("Chat non trovata.");
+                    return;
+                }
+
+                // risposta dall'indice di presenza, senza toccare le connessioni
+                List<String> names = new ArrayList<>();
+                for (User u : c.getParticipants()) {
+                    if (userManager.isOnline(u)) names.add(u.getUsername());
+                }
+                out.println("Online nella chat " + c.getID() + " (" + names.size() + "): " + String.join(", ", names));
+                return;
+            }
+
+            if (cmd.startsWith("/search ")) {
+                // /search <chatID|*> <parole>: solo nelle chat di cui l'utente fa parte
+                SearchIndex search = chatManager.getSearch();
+                String[] p = cmd.split(" ", 3);
+                if (search == null) {
+                    out.println("Ricerca non disponibile.");
+                    return;
+                }
+                if (p.length < 3) {
+                    out.println("Uso: /search <chatID|*> <parole>");
+                    return;
+                }
+
+                List<Chat> scope;
+                if (p[1].equals("*")) {
+                    scope = chatManager.getChatsForUser(user);
+                } else {
+                    Chat c = chatManager.getChatByID(Integer.parseInt(p[1]));
+                    if (c == null || !chatManager.isParticipant(user, c)) {
+                        out.println("Chat non trovata.");
+                        return;
+                    }
+                    scope = List.of(c);
+                }
+
+                List<Message> found = chatManager.getMessages(search.search(scope, p[2], SEARCH_LIMIT));
+                // l'indice sceglie per id; l'ordine mostrato è quello di invio
+                found.sort((a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+                out.println("Risultati per \"" + p[2] + "\" (" + found.size() + "):");
+                for (Message m : found) {
+                    out.println("#" + m.getID() + " chat " + m.getChatID() + " [" + m.getSenderID() + "] " + m.getContent());
+                }
+                return;
+            }
+
+            if (cmd.equals("/stats")) {
+                if (!ADMINS.contains(user.getUsername())) {
+                    out.println("Comando riservato agli amministratori.");
+                    return;
+                }
+                out.print(Metrics.render());
+                return;
+            }
+
             out.println("Comando non valido. Usa /help.");
 
         } catch (Exception e) {
@@ -240,7 +640,48 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // accoda il messaggio: la scrittura sul socket avviene nel thread della OutboundQueue
     public void sendMessage(Chat chat, Message msg) {
-        out.println("[" + chat.getID() + "] " + msg.getSenderID() + ": " + msg.getContent());
+        deliver(chat.getID(), msg.getSenderID(), msg.getID(), msg.getSeq(), msg.getContentBytes());
+    }
+
+    // durante il recupero i messaggi in diretta di questa chat si tengono da parte, per inviarli
+    // dopo quelli salvati; sul worker della chat
+    public boolean holdIfCatchingUp(int chatId, Message msg) {
+        if (catchingUp.isEmpty()) return false;
+        List<Message> held = catchingUp.get(chatId);
+        if (held == null) return false;
+        held.add(msg);
+        return true;
+    }
+
+    // fine del recupero della chat, sul suo worker: restituisce i messaggi tenuti da parte
+    public List<Message> catchUpDone(int chatId) {
+        List<Message> held = catchingUp.remove(chatId);
+        return held != null ? held : List.of();
+    }
+
+    // dal recupero al login, prima di ogni pagina di messaggi; false se il client si è scollegato
+    public boolean awaitOutboundRoom(int n) {
+        try {
+            return outbound.awaitRoom(n);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // notifica del server (es. presenza), fuori dal ciclo richiesta/risposta: scartata se il client è lento
+    public void sendNotice(String line) {
+        outbound.offerNotice(line + System.lineSeparator());
+    }
+
+    // consegna di un messaggio arrivato da un altro nodo del cluster
+    public void deliver(int chatId, int senderId, long messageId, long seq, byte[] content) {
+        outbound.offerMessage(chatId, senderId, messageId, seq, content);
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
     }
 }
@@ -0,0 +1,218 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Più istanze del server dietro un load balancer: ogni nodo sa quali altri nodi sono attivi
+// (registro) e su quale nodo è connesso ogni utente (presenza). Un messaggio per utenti
+// connessi altrove parte in un solo frame per nodo, solo verso i nodi che hanno destinatari.
+//
+//   -Dchat.node.id=1 -Dchat.cluster.port=13345 -Dchat.cluster.peers=2@127.0.0.1:13346,3@127.0.0.1:13347
+//   -Dchat.cluster.secret=... (obbligatorio, uguale su tutti i nodi) -Dchat.cluster.host=10.0.0.1
+// chat.cluster.host è l'indirizzo su cui ascoltare per gli altri nodi (default 127.0.0.1).
+//
+// Il cluster non copia la cronologia: un nodo vede i messaggi, le chat e gli utenti scritti dagli
+// altri tramite DeltaSync, che con i peer configurati è sempre attiva. Senza DeltaSync il server
+// non entra nel cluster (vedi Server.start).
+public class Cluster implements ClusterBus.Listener {
+    private static final byte PRESENCE_ON = 1;  // [n][id utente...]
+    private static final byte PRESENCE_OFF = 2; // [n][id utente...]
+    private static final byte DELIVER = 3;      // [chat][mittente][id messaggio][seq][contenuto][n][destinatari...]
+
+    private final int nodeId;
+    private final ClusterBus bus;
+    private final UserManager userManager;
+    private final Set<Integer> nodes = ConcurrentHashMap.newKeySet();    // nodi collegati
+    private final Map<Integer, Integer> presence = new ConcurrentHashMap<>(); // id utente → nodo remoto
+
+    public Cluster(int nodeId, ClusterBus bus, UserManager userManager) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+        this.userManager = userManager;
+    }
+
+    // null se non ci sono peer configurati o manca il segreto: il server resta un nodo singolo
+    public static Cluster fromSystemProperties(UserManager userManager, int clientPort) {
+        String spec = System.getProperty("chat.cluster.peers", "").trim();
+        if (spec.isEmpty()) return null;
+        String secret = System.getProperty("chat.cluster.secret", "");
+        if (secret.isEmpty()) {
+            System.out.println("chat.cluster.secret non impostato: cluster disattivato");
+            return null;
+        }
+
+        Map<Integer, InetSocketAddress> peers = new HashMap<>();
+        for (String peer : spec.split(",")) {
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            peers.put(Integer.parseInt(peer.substring(0, at).trim()),
+                    new InetSocketAddress(peer.substring(at + 1, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+        }
+        int nodeId = Integer.getInteger("chat.node.id", 1);
+        ClusterBus bus = new TcpMeshBus(nodeId,
+                new InetSocketAddress(System.getProperty("chat.cluster.host", "127.0.0.1"),
+                        Integer.getInteger("chat.cluster.port", clientPort + 1000)),
+                peers,
+                secret.getBytes(StandardCharsets.UTF_8),
+                Integer.getInteger("chat.cluster.queueCapacity", 100_000),
+                Long.getLong("chat.cluster.queueBytes", 64L * 1024 * 1024),
+                Integer.getInteger("chat.cluster.maxFrameBytes", 16 * 1024 * 1024));
+        return new Cluster(nodeId, bus, userManager);
+    }
+
+    public void start() throws IOException {
+        bus.start(this);
+    }
+
+    public void shutdown() {
+        bus.close();
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public Set<Integer> getNodes() {
+        return nodes;
+    }
+
+    // nodo su cui è connesso l'utente, null se non è connesso su un altro nodo
+    public Integer getNodeOf(int userId) {
+        return presence.get(userId);
+    }
+
+    // --------------------
+    // EVENTI LOCALI
+    // --------------------
+    public void userOnline(int userId) {
+        bus.broadcast(presenceFrame(PRESENCE_ON, List.of(userId)));
+    }
+
+    public void userOffline(int userId) {
+        bus.broadcast(presenceFrame(PRESENCE_OFF, List.of(userId)));
+    }
+
+    // consegna il messaggio ai destinatari connessi su altri nodi: un frame per nodo
+    public void forward(int chatId, Message msg, Collection<User> recipients) {
+        Map<Integer, List<Integer>> byNode = new HashMap<>();
+        for (User u : recipients) {
+            Integer node = presence.get(u.getID());
+            if (node != null) byNode.computeIfAbsent(node, k -> new ArrayList<>()).add(u.getID());
+        }
+        for (Map.Entry<Integer, List<Integer>> e : byNode.entrySet()) {
+            bus.send(e.getKey(), deliverFrame(chatId, msg, e.getValue()));
+        }
+    }
+
+    // --------------------
+    // EVENTI DAL BUS
+    // --------------------
+    @Override
+    public void onConnected(int node) {
+        nodes.add(node);
+        // il nuovo nodo riceve subito l'elenco degli utenti connessi qui
+        List<Integer> local = userManager.getLocalUserIds();
+        if (!local.isEmpty()) bus.send(node, presenceFrame(PRESENCE_ON, local));
+    }
+
+    @Override
+    public void onDisconnected(int node) {
+        nodes.remove(node);
+        for (Map.Entry<Integer, Integer> e : presence.entrySet()) {
+            if (e.getValue() == node && presence.remove(e.getKey(), node)) notifyPresence(e.getKey(), false);
+        }
+    }
+
+    @Override
+    public void onFrame(int fromNode, byte[] frame) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            switch (in.readByte()) {
+                case PRESENCE_ON -> {
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        int userId = in.readInt();
+                        presence.put(userId, fromNode);
+                        notifyPresence(userId, true);
+                    }
+                }
+                case PRESENCE_OFF -> {
+                    // solo se l'utente risulta ancora su quel nodo: potrebbe essersi già ricollegato altrove
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        int userId = in.readInt();
+                        if (presence.remove(userId, fromNode)) notifyPresence(userId, false);
+                    }
+                }
+                case DELIVER -> {
+                    int chatId = in.readInt();
+                    int senderId = in.readInt();
+                    long messageId = in.readLong();
+                    long seq = in.readLong();
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        ClientHandler ch = userManager.getClientHandler(in.readInt());
+                        if (ch != null) ch.deliver(chatId, senderId, messageId, seq, content);
+                    }
+                }
+                default -> System.out.println("Frame sconosciuto dal nodo " + fromNode);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // gli utenti locali che condividono una chat vengono avvisati dal PresenceService
+    private void notifyPresence(int userId, boolean online) {
+        PresenceService p = userManager.getPresence();
+        User u = userManager.getUser(userId);
+        if (p != null && u != null) p.remoteChanged(u, online);
+    }
+
+    // --------------------
+    // CODIFICA
+    // --------------------
+    private static byte[] presenceFrame(byte type, List<Integer> userIds) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(5 + 4 * userIds.size());
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeByte(type);
+            out.writeInt(userIds.size());
+            for (int id : userIds) out.writeInt(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    private static byte[] deliverFrame(int chatId, Message msg, List<Integer> recipients) {
+        byte[] content = msg.getContentBytes();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(33 + content.length + 4 * recipients.size());
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeByte(DELIVER);
+            out.writeInt(chatId);
+            out.writeInt(msg.getSenderID());
+            out.writeLong(msg.getID());
+            out.writeLong(msg.getSeq());
+            out.writeInt(content.length);
+            out.write(content);
+            out.writeInt(recipients.size());
+            for (int id : recipients) out.writeInt(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+}
@@ -0,0 +1,26 @@
+import java.io.IOException;
+
+// Trasporto tra i nodi del cluster. Cluster decide cosa inviare e a chi,
+// il bus si occupa solo di consegnare i frame (vedi TcpMeshBus).
+public interface ClusterBus {
+
+    interface Listener {
+        // il collegamento verso il nodo è pronto: si possono inviare frame
+        void onConnected(int nodeId);
+
+        // il nodo non è più raggiungibile
+        void onDisconnected(int nodeId);
+
+        void onFrame(int fromNode, byte[] frame);
+    }
+
+    void start(Listener listener) throws IOException;
+
+    // invio asincrono; se il nodo non è collegato il frame resta in coda fino alla riconnessione,
+    // se la coda è piena viene scartato
+    void send(int nodeId, byte[] frame);
+
+    void broadcast(byte[] frame);
+
+    void close();
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+// Motore che accetta le connessioni dei client e le collega a un ClientHandler.
+// Il motore viene scelto all'avvio del server (vedi Server.main).
+public interface ConnectionEngine {
+
+    // resta in ascolto sulla porta finché il server è attivo
+    void start(int port, ChatManager chatManager, UserManager userManager) throws IOException;
+
+    static ConnectionEngine fromName(String name) {
+        return switch (name.toLowerCase()) {
+            case "virtual" -> new VirtualThreadEngine();
+            case "nio" -> new NioEngine();
+            default -> throw new IllegalArgumentException("Motore di connessione sconosciuto: " + name);
+        };
+    }
+}
@@ -0,0 +1,289 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool JDBC limitato e condiviso da tutti i DBManager.
+// getConnection() restituisce un proxy: chiamare close() rimette la connessione nel pool.
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long leakThresholdMs;
+
+    private final Semaphore permits;
+    private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, Lease> inUse = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService leakDetector;
+
+    // metriche
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public ConnectionPool(String url, int minSize, int maxSize, long acquireTimeoutMs, long leakThresholdMs) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Dimensioni del pool non valide: min=" + minSize + " max=" + maxSize);
+        }
+        this.url = url;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.permits = new Semaphore(maxSize, true);
+
+        // leakThresholdMs = 0 disattiva il rilevamento: niente thread e niente stack trace a ogni prestito
+        if (leakThresholdMs > 0) {
+            leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "db-pool-leak-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1000, leakThresholdMs / 2);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            leakDetector = null;
+        }
+
+        prefill();
+    }
+
+    // configurazione da system property, es. -Dchat.db.url=jdbc:postgresql://localhost/chat
+    public static ConnectionPool fromSystemProperties(String defaultUrl) {
+        return new ConnectionPool(
+                System.getProperty("chat.db.url", defaultUrl),
+                Integer.getInteger("chat.db.pool.min", 2),
+                Integer.getInteger("chat.db.pool.max", 10),
+                Long.getLong("chat.db.pool.acquireTimeoutMs", 5000L),
+                Long.getLong("chat.db.pool.leakThresholdMs", 30000L)
+        );
+    }
+
+    private void prefill() {
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.offerLast(openConnection());
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Impossibile aprire le connessioni iniziali del pool");
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        return getConnection(null);
+    }
+
+    // latency (se non null) registra i ns dalla richiesta della connessione al suo close()
+    public Connection getConnection(Metrics.Histogram latency) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timeout nell'acquisizione di una connessione dal pool (" + acquireTimeoutMs + " ms)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrotto in attesa di una connessione dal pool", e);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+
+        try {
+            Connection raw = borrowIdle();
+            if (raw == null) raw = openConnection();
+            inUse.put(raw, leakThresholdMs > 0 ? new Lease() : Lease.UNTRACKED);
+            acquired.increment();
+            return wrap(raw, latency, start);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // connessione inattiva più recente che supera la validazione, oppure null
+    private Connection borrowIdle() {
+        Connection raw;
+        while ((raw = idle.pollFirst()) != null) {
+            try {
+                if (raw.isValid(VALIDATION_TIMEOUT_SECONDS)) return raw;
+            } catch (SQLException ignored) {
+            }
+            validationFailures.increment();
+            discard(raw);
+        }
+        return null;
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection raw = DriverManager.getConnection(url);
+        total.incrementAndGet();
+        return raw;
+    }
+
+    private void release(Connection raw) {
+        inUse.remove(raw);
+        try {
+            if (raw.isClosed()) {
+                total.decrementAndGet();
+            } else {
+                if (!raw.getAutoCommit()) {
+                    raw.rollback();
+                    raw.setAutoCommit(true);
+                }
+                idle.offerFirst(raw);
+            }
+        } catch (SQLException e) {
+            discard(raw);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(Connection raw) {
+        total.decrementAndGet();
+        try { raw.close(); } catch (SQLException ignored) {}
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : inUse.values()) {
+            if (lease != Lease.UNTRACKED && !lease.reported && now - lease.borrowedAt > leakThresholdMs) {
+                lease.reported = true;
+                leaks.increment();
+                System.out.println("Possibile leak: connessione in uso da " + (now - lease.borrowedAt)
+                        + " ms dal thread " + lease.thread);
+                lease.origin.printStackTrace(System.out);
+            }
+        }
+    }
+
+    private Connection wrap(Connection raw, Metrics.Histogram latency, long start) {
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            release(raw);
+                            if (latency != null) latency.recordSince(start);
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed || raw.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        if (closed) throw new SQLException("Connessione già restituita al pool");
+                        try {
+                            return method.invoke(raw, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+
+    public void shutdown() {
+        if (leakDetector != null) leakDetector.shutdownNow();
+        Connection raw;
+        while ((raw = idle.pollFirst()) != null) {
+            discard(raw);
+        }
+    }
+
+    // --------------------
+    // METRICHE
+    // --------------------
+    public int getActive() {
+        return inUse.size();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getValidationFailures() {
+        return validationFailures.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    public String stats() {
+        return "active=" + getActive() + " idle=" + getIdle() + " total=" + getTotal() + "/" + maxSize
+                + " waiting=" + getWaiting() + " acquired=" + getAcquired() + " waitMs=" + getTotalWaitMillis()
+                + " timeouts=" + getTimeouts() + " validationFailures=" + getValidationFailures() + " leaks=" + getLeaks();
+    }
+
+    // prestito di una connessione; l'origine (stack trace) si cattura solo se il rilevamento dei leak è attivo
+    private static class Lease {
+        static final Lease UNTRACKED = new Lease(0, null, null);
+
+        private final long borrowedAt;
+        private final String thread;
+        private final Exception origin;
+        private volatile boolean reported;
+
+        Lease() {
+            this(System.currentTimeMillis(), Thread.currentThread().toString(), new Exception("Connessione acquisita qui"));
+        }
+
+        private Lease(long borrowedAt, String thread, Exception origin) {
+            this.borrowedAt = borrowedAt;
+            this.thread = thread;
+            this.origin = origin;
+        }
+    }
+}
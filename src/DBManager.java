@@ -1,257 +1,581 @@
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
 
 public class DBManager {
     private static final String DB_URL = "jdbc:postgresql://pg-3d352acb-chattpsit.g.aivencloud.com:15477/defaultdb?ssl=require&user=avnadmin&";
-    private Connection conn;
 
-    public DBManager() {
+    // pool condiviso: i DBManager creati da ClientHandler, ChatManager e UserManager non aprono connessioni proprie
+    private static final ConnectionPool pool = createPool();
+
+    // -Dchat.db.url=jdbc:stub usa StubDriver al posto di PostgreSQL (prove di carico, benchmark)
+    private static ConnectionPool createPool() {
         try {
-            Class.forName("org.postgresql.Driver");
-            conn = DriverManager.getConnection(DB_URL);
-        } catch (ClassNotFoundException | SQLException e) {
+            boolean stub = System.getProperty("chat.db.url", "").startsWith(StubDriver.PREFIX);
+            Class.forName(stub ? "StubDriver" : "org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
+        return ConnectionPool.fromSystemProperties(DB_URL);
+    }
+
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
+    // una serie per query, registrata qui: connect() non compone etichette a ogni chiamata
+    private static final Map<String, Metrics.Histogram> QUERY_LATENCY = new HashMap<>();
+    private static final Metrics.Histogram OTHER_QUERY_LATENCY = Metrics.histogram("chat_db_query_ns", "query", "altro");
+
+    static {
+        for (String query : List.of("addUser/id", "addUser", "updatePassword", "addChat", "addUserToChat", "addMessage",
+                "addMessages", "addGroup", "getMessages", "getAllUsers", "getMessagesAfter/all", "countMemberships",
+                "getUsersAfter", "getUsersByIds", "getMemberships", "nextIds", "getMaxMessageId", "getMaxSeq", "getMessagesPage",
+                "scanMessages", "getMessagesByIds", "createSeqColumn", "createCursorTable", "getCursors", "saveCursors", "getAllChats",
+                "getAllChatsByUser", "getChatsAfter")) {
+            QUERY_LATENCY.put(query, Metrics.histogram("chat_db_query_ns", "query", query));
+        }
+    }
+
+    // connessione dal pool; il tempo fino a close() (attesa compresa) va nella latenza della query
+    private static Connection connect(String query) throws SQLException {
+        Metrics.Histogram latency = QUERY_LATENCY.get(query);
+        return pool.getConnection(latency != null ? latency : OTHER_QUERY_LATENCY);
+    }
+
+    // Inserimento utente con id già assegnato (vedi IdAllocator)
+    public void addUser(int id, String username, String password, int status) throws SQLException {
+        try (Connection conn = connect("addUser/id");
+             PreparedStatement ps = conn.prepareStatement(
+                     "INSERT INTO utente (id_utente, username, password, status) VALUES (?, ?, ?, ?)")) {
+            ps.setInt(1, id);
+            ps.setString(2, username);
+            ps.setString(3, password);
+            ps.setInt(4, status);
+            ps.executeUpdate();
+        }
     }
 
     // Inserimento utente
     public int addUser(String username, String password, int status) throws SQLException {
-        String sql = "INSERT INTO utente (username, password, status) VALUES (?, ?, ?) RETURNING id_utente";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, username);
-        ps.setString(2, password);
-        ps.setInt(3, status);
-        ResultSet rs = ps.executeQuery();
-        int id = -1;
-        if (rs.next()) id = rs.getInt("id_utente");
-        rs.close();
-        ps.close();
-        return id;
+        try (Connection conn = connect("addUser")) {
+            String sql = "INSERT INTO utente (username, password, status) VALUES (?, ?, ?) RETURNING id_utente";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setString(1, username);
+            ps.setString(2, password);
+            ps.setInt(3, status);
+            ResultSet rs = ps.executeQuery();
+            int id = -1;
+            if (rs.next()) id = rs.getInt("id_utente");
+            rs.close();
+            ps.close();
+            return id;
+        }
+    }
+
+    // Aggiornamento della password (es. da testo in chiaro a hash)
+    public void updatePassword(int idUtente, String password) throws SQLException {
+        try (Connection conn = connect("updatePassword");
+             PreparedStatement ps = conn.prepareStatement("UPDATE utente SET password = ? WHERE id_utente = ?")) {
+            ps.setString(1, password);
+            ps.setInt(2, idUtente);
+            ps.executeUpdate();
+        }
     }
 
     // Inserimento chat
     public int addChat(String tipo) throws SQLException {
-        String sql = "INSERT INTO chat (tipo) VALUES (?) RETURNING id_chat";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, tipo);
-        ResultSet rs = ps.executeQuery();
-        int id = -1;
-        if (rs.next()) id = rs.getInt("id_chat");
-        rs.close();
-        ps.close();
-        return id;
+        try (Connection conn = connect("addChat")) {
+            String sql = "INSERT INTO chat (tipo) VALUES (?) RETURNING id_chat";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setString(1, tipo);
+            ResultSet rs = ps.executeQuery();
+            int id = -1;
+            if (rs.next()) id = rs.getInt("id_chat");
+            rs.close();
+            ps.close();
+            return id;
+        }
     }
 
     // Aggiungi utente a chat
     public void addUserToChat(int idChat, int idUtente) throws SQLException {
-        String sql = "INSERT INTO chatutente (id_chat, id_utente) VALUES (?, ?) ON CONFLICT DO NOTHING";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, idChat);
-        ps.setInt(2, idUtente);
-        ps.executeUpdate();
-        ps.close();
+        try (Connection conn = connect("addUserToChat")) {
+            String sql = "INSERT INTO chatutente (id_chat, id_utente) VALUES (?, ?) ON CONFLICT DO NOTHING";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setInt(1, idChat);
+            ps.setInt(2, idUtente);
+            ps.executeUpdate();
+            ps.close();
+        }
     }
 
     // Inserimento messaggio
-    public int addMessage(int idChat, int idUtente, String content) throws SQLException {
-        String sql = "INSERT INTO messaggio (content, id_chat, id_utente) VALUES (?, ?, ?) RETURNING id_messaggio";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, content);
-        ps.setInt(2, idChat);
-        ps.setInt(3, idUtente);
-        ResultSet rs = ps.executeQuery();
-        int id = -1;
-        if (rs.next()) id = rs.getInt("id_messaggio");
-        rs.close();
-        ps.close();
-        return id;
+    public long addMessage(int idChat, int idUtente, String content) throws SQLException {
+        try (Connection conn = connect("addMessage")) {
+            String sql = "INSERT INTO messaggio (content, id_chat, id_utente) VALUES (?, ?, ?) RETURNING id_messaggio";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setString(1, content);
+            ps.setInt(2, idChat);
+            ps.setInt(3, idUtente);
+            ResultSet rs = ps.executeQuery();
+            long id = -1;
+            if (rs.next()) id = rs.getLong("id_messaggio");
+            rs.close();
+            ps.close();
+            return id;
+        }
+    }
+
+    // Inserimento di un blocco di messaggi in un'unica transazione (usato da MessageJournal)
+    public void addMessages(List<Message> messages) throws SQLException {
+        addMessages(messages, null);
+    }
+
+    // Gli id sono già assegnati dal server (vedi IdAllocator). inserted, se non è null, riceve
+    // gli id prima del commit: chi legge il DB (es. DeltaSync) non può vedere le righe prima
+    public void addMessages(List<Message> messages, LongConsumer inserted) throws SQLException {
+        // ON CONFLICT: il journal può riprovare un blocco già scritto (commit riuscito, risposta persa)
+        String sql = "INSERT INTO messaggio (id_messaggio, content, id_chat, id_utente, time, seq) VALUES (?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT (id_messaggio) DO NOTHING";
+        try (Connection conn = connect("addMessages");
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            try {
+                for (Message m : messages) {
+                    ps.setLong(1, m.getID());
+                    ps.setString(2, m.getContent());
+                    ps.setInt(3, m.getChatID());
+                    ps.setInt(4, m.getSenderID());
+                    ps.setTimestamp(5, new Timestamp(m.getTimestamp()));
+                    ps.setLong(6, m.getSeq());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                if (inserted != null) {
+                    for (Message m : messages) inserted.accept(m.getID());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
     }
 
     // Inserimento gruppo
     public void addGroup(int idChat, String nome) throws SQLException {
-        String sql = "INSERT INTO gruppo (id_chat, nome) VALUES (?, ?)";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, idChat);
-        ps.setString(2, nome);
-        ps.executeUpdate();
-        ps.close();
+        try (Connection conn = connect("addGroup")) {
+            String sql = "INSERT INTO gruppo (id_chat, nome) VALUES (?, ?)";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setInt(1, idChat);
+            ps.setString(2, nome);
+            ps.executeUpdate();
+            ps.close();
+        }
     }
 
     // Lettura messaggi di una chat (per output semplice)
     public List<String> getMessages(int idChat) throws SQLException {
-        String sql = "SELECT m.id_messaggio, m.content, u.username, m.time " +
-                "FROM messaggio m " +
-                "JOIN utente u ON m.id_utente = u.id_utente " +
-                "WHERE m.id_chat = ? " +
-                "ORDER BY m.time ASC";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, idChat);
-        ResultSet rs = ps.executeQuery();
-
-        List<String> messages = new ArrayList<>();
-        while (rs.next()) {
-            messages.add(rs.getInt("id_messaggio") + " | " +
-                    rs.getString("username") + ": " +
-                    rs.getString("content") + " (" +
-                    rs.getTimestamp("time") + ")");
-        }
-        rs.close();
-        ps.close();
-        return messages;
+        try (Connection conn = connect("getMessages")) {
+            String sql = "SELECT m.id_messaggio, m.content, u.username, m.time " +
+                    "FROM messaggio m " +
+                    "JOIN utente u ON m.id_utente = u.id_utente " +
+                    "WHERE m.id_chat = ? " +
+                    "ORDER BY m.time ASC";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setInt(1, idChat);
+            ResultSet rs = ps.executeQuery();
+
+            List<String> messages = new ArrayList<>();
+            while (rs.next()) {
+                messages.add(rs.getLong("id_messaggio") + " | " +
+                        rs.getString("username") + ": " +
+                        rs.getString("content") + " (" +
+                        rs.getTimestamp("time") + ")");
+            }
+            rs.close();
+            ps.close();
+            return messages;
+        }
     }
 
     // Recupera tutti gli utenti
     public List<User> getAllUsers() throws SQLException {
-        String sql = "SELECT id_utente, username, password, status FROM utente";
-        Statement stmt = conn.createStatement();
-        ResultSet rs = stmt.executeQuery(sql);
-
-        List<User> users = new ArrayList<>();
-        while (rs.next()) {
-            int id = rs.getInt("id_utente");
-            String username = rs.getString("username");
-            String password = rs.getString("password");
-            boolean status = rs.getInt("status") == 1;
-            users.add(new User(id, username, password, status));
-        }
-        rs.close();
-        stmt.close();
-        return users;
-    }
-
-    // Recupera tutti gli utenti in una chat
-    private List<User> getUsersInChat(int chatId) throws SQLException {
-        String sql = "SELECT u.id_utente, u.username, u.password, u.status " +
-                "FROM utente u " +
-                "JOIN chatutente cu ON u.id_utente = cu.id_utente " +
-                "WHERE cu.id_chat = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, chatId);
-        ResultSet rs = ps.executeQuery();
-
-        List<User> users = new ArrayList<>();
-        while (rs.next()) {
-            int id = rs.getInt("id_utente");
-            String username = rs.getString("username");
-            String password = rs.getString("password");
-            boolean status = rs.getInt("status") == 1;
-            users.add(new User(id, username, password, status));
-        }
-        rs.close();
-        ps.close();
-        return users;
-    }
-
-    // Recupera i messaggi di una chat
-    private List<Message> getMessagesForChat(int chatId) throws SQLException {
-        String sql = "SELECT id_messaggio, content, id_utente, time " +
-                "FROM messaggio WHERE id_chat = ? ORDER BY time ASC";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setInt(1, chatId);
-        ResultSet rs = ps.executeQuery();
-
-        List<Message> messages = new ArrayList<>();
-        while (rs.next()) {
-            int messageId = rs.getInt("id_messaggio");
-            String content = rs.getString("content");
-            int senderId = rs.getInt("id_utente");
-            Message message = new Message(String.valueOf(senderId), content, String.valueOf(messageId), String.valueOf(chatId));
-            messages.add(message);
-        }
-
-        rs.close();
-        ps.close();
-        return messages;
+        try (Connection conn = connect("getAllUsers")) {
+            String sql = "SELECT id_utente, username, password, status FROM utente";
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(sql);
+
+            List<User> users = new ArrayList<>();
+            while (rs.next()) {
+                int id = rs.getInt("id_utente");
+                String username = rs.getString("username");
+                String password = rs.getString("password");
+                boolean status = rs.getInt("status") == 1;
+                users.add(new User(id, username, password, status));
+            }
+            rs.close();
+            stmt.close();
+            return users;
+        }
     }
 
-    // Recupera tutte le chat (DM e Gruppo)
-    public List<Chat> getAllChats() throws SQLException {
-        List<Chat> chats = new ArrayList<>();
-        String chatSql = "SELECT tipo, id_chat FROM chat";
-        Statement stmt = conn.createStatement();
-        ResultSet rs = stmt.executeQuery(chatSql);
-
-        while (rs.next()) {
-            int chatId = rs.getInt("id_chat");
-            String tipo = rs.getString("tipo");
-
-            if (tipo.equalsIgnoreCase("DirectMessage")) {
-                List<User> dmUsers = getUsersInChat(chatId);
-                if (dmUsers.size() == 2) {
-                    DM dm = new DM(chatId, dmUsers.get(0), dmUsers.get(1));
-                    dm.getMessaggi().addAll(getMessagesForChat(chatId));
-                    chats.add(dm);
+    // Messaggi con id maggiore di afterId, in ordine di id, al massimo limit
+    public List<Message> getMessagesAfter(long afterId, int limit) throws SQLException {
+        try (Connection conn = connect("getMessagesAfter/all");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id_messaggio, id_chat, content, id_utente, time, seq FROM messaggio " +
+                     "WHERE id_messaggio > ? ORDER BY id_messaggio LIMIT ?")) {
+            ps.setLong(1, afterId);
+            ps.setInt(2, limit);
+            List<Message> messages = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(toMessage(rs, rs.getInt("id_chat")));
                 }
-            } else if (tipo.equalsIgnoreCase("Gruppo")) {
-                String groupSql = "SELECT nome FROM gruppo WHERE id_chat = ?";
-                PreparedStatement groupPs = conn.prepareStatement(groupSql);
-                groupPs.setInt(1, chatId);
-                ResultSet groupRs = groupPs.executeQuery();
+            }
+            return messages;
+        }
+    }
 
-                if (groupRs.next()) {
-                    String nomeGruppo = groupRs.getString("nome");
-                    Gruppo gruppo = new Gruppo(chatId, nomeGruppo);
-                    gruppo.getParticipants().addAll(getUsersInChat(chatId));
-                    gruppo.getMessaggi().addAll(getMessagesForChat(chatId));
-                    chats.add(gruppo);
+    public int countMemberships() throws SQLException {
+        try (Connection conn = connect("countMemberships");
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM chatutente")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // Utenti con id maggiore di afterId: il delta rispetto a uno snapshot
+    public List<User> getUsersAfter(int afterId) throws SQLException {
+        try (Connection conn = connect("getUsersAfter");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id_utente, username, password, status FROM utente WHERE id_utente > ? ORDER BY id_utente")) {
+            ps.setInt(1, afterId);
+            List<User> users = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    users.add(toUser(rs));
                 }
-                groupRs.close();
-                groupPs.close();
             }
+            return users;
         }
+    }
 
-        rs.close();
-        stmt.close();
-        return chats;
+    // Utenti per id, in una sola query
+    public Map<Integer, User> getUsersByIds(Collection<Integer> ids) throws SQLException {
+        Map<Integer, User> users = new HashMap<>();
+        if (ids.isEmpty()) return users;
+        try (Connection conn = connect("getUsersByIds");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id_utente, username, password, status FROM utente WHERE id_utente = ANY(?)")) {
+            ps.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    User u = toUser(rs);
+                    users.put(u.getID(), u);
+                }
+            }
+            return users;
+        }
+    }
+
+    private static User toUser(ResultSet rs) throws SQLException {
+        return new User(rs.getInt("id_utente"), rs.getString("username"), rs.getString("password"),
+                rs.getInt("status") == 1);
+    }
+
+    // Tutte le coppie {id_chat, id_utente}: chatutente non ha un id progressivo,
+    // quindi il delta delle partecipazioni si calcola rileggendo solo queste due colonne
+    public List<int[]> getMemberships() throws SQLException {
+        try (Connection conn = connect("getMemberships");
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id_chat, id_utente FROM chatutente")) {
+            List<int[]> pairs = new ArrayList<>();
+            while (rs.next()) {
+                pairs.add(new int[]{rs.getInt(1), rs.getInt(2)});
+            }
+            return pairs;
+        }
+    }
+
+    // count id dalla sequenza della colonna seriale, in una sola query.
+    // table e column sono nomi fissi scelti dal server, non input dei client
+    public long[] nextIds(String table, String column, int count) throws SQLException {
+        try (Connection conn = connect("nextIds");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT nextval(pg_get_serial_sequence('" + table + "', '" + column + "')) FROM generate_series(1, ?)")) {
+            ps.setInt(1, count);
+            long[] ids = new long[count];
+            int n = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next() && n < count) ids[n++] = rs.getLong(1);
+            }
+            return n == count ? ids : Arrays.copyOf(ids, n);
+        }
+    }
+
+    public long getMaxMessageId() throws SQLException {
+        try (Connection conn = connect("getMaxMessageId");
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id_messaggio), 0) FROM messaggio")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // ultima sequenza salvata per la chat (vedi Chat.nextSeq), 0 se non ce n'è nessuna
+    public long getMaxSeq(int chatId) throws SQLException {
+        try (Connection conn = connect("getMaxSeq");
+             PreparedStatement ps = conn.prepareStatement("SELECT COALESCE(MAX(seq), 0) FROM messaggio WHERE id_chat = ?")) {
+            ps.setInt(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    // Pagina di messaggi di una chat (keyset pagination sull'id): i limit messaggi più recenti
+    // con id < beforeId, o i più recenti in assoluto se beforeId è null. Ordine crescente.
+    public List<Message> getMessagesPage(int chatId, Long beforeId, int limit) throws SQLException {
+        String sql = "SELECT id_messaggio, content, id_utente, time, seq FROM messaggio WHERE id_chat = ?" +
+                (beforeId != null ? " AND id_messaggio < ?" : "") +
+                " ORDER BY id_messaggio DESC LIMIT ?";
+
+        try (Connection conn = connect("getMessagesPage");
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = 1;
+            ps.setInt(i++, chatId);
+            if (beforeId != null) ps.setLong(i++, beforeId);
+            ps.setInt(i, limit);
+
+            List<Message> messages = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(toMessage(rs, chatId));
+                }
+            }
+            Collections.reverse(messages);
+            return messages;
+        }
+    }
+
+    // Messaggi della chat con id maggiore di afterId in ordine crescente: per scorrere tutta la cronologia
+    public List<Message> scanMessages(int chatId, long afterId, int limit) throws SQLException {
+        try (Connection conn = connect("scanMessages");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id_messaggio, content, id_utente, time, seq FROM messaggio " +
+                     "WHERE id_chat = ? AND id_messaggio > ? ORDER BY id_messaggio LIMIT ?")) {
+            ps.setInt(1, chatId);
+            ps.setLong(2, afterId);
+            ps.setInt(3, limit);
+
+            List<Message> messages = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(toMessage(rs, chatId));
+                }
+            }
+            return messages;
+        }
+    }
+
+    // Messaggi con gli id dati, in una sola query (es. risultati di una ricerca)
+    public List<Message> getMessagesByIds(Collection<Long> ids) throws SQLException {
+        try (Connection conn = connect("getMessagesByIds");
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id_messaggio, id_chat, content, id_utente, time, seq FROM messaggio WHERE id_messaggio = ANY(?)")) {
+            ps.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+            List<Message> messages = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(toMessage(rs, rs.getInt("id_chat")));
+                }
+            }
+            return messages;
+        }
+    }
+
+    // numero di sequenza per chat (vedi Chat.nextSeq): le righe scritte prima restano a NULL
+    public void createSeqColumn() throws SQLException {
+        try (Connection conn = connect("createSeqColumn");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE messaggio ADD COLUMN IF NOT EXISTS seq BIGINT");
+            stmt.execute("CREATE INDEX IF NOT EXISTS messaggio_chat_seq ON messaggio (id_chat, seq)");
+        }
+    }
+
+    // --------------------
+    // CURSORI DI CONSEGNA
+    // --------------------
+    // ultimo messaggio consegnato per (utente, chat); id_chat = 0 vale per le chat senza cursore
+    public void createCursorTable() throws SQLException {
+        try (Connection conn = connect("createCursorTable");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS cursore (" +
+                    "id_utente INT NOT NULL, id_chat INT NOT NULL, id_messaggio BIGINT NOT NULL, " +
+                    "PRIMARY KEY (id_utente, id_chat))");
+        }
+    }
+
+    // id chat → id dell'ultimo messaggio consegnato
+    public Map<Integer, Long> getCursors(int idUtente) throws SQLException {
+        try (Connection conn = connect("getCursors");
+             PreparedStatement ps = conn.prepareStatement("SELECT id_chat, id_messaggio FROM cursore WHERE id_utente = ?")) {
+            ps.setInt(1, idUtente);
+            Map<Integer, Long> cursors = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    cursors.put(rs.getInt("id_chat"), rs.getLong("id_messaggio"));
+                }
+            }
+            return cursors;
+        }
+    }
+
+    // upsert a blocchi di righe [id_utente, id_chat, id_messaggio]; un cursore non torna mai indietro
+    public void saveCursors(List<long[]> rows) throws SQLException {
+        String sql = "INSERT INTO cursore (id_utente, id_chat, id_messaggio) VALUES (?, ?, ?) " +
+                "ON CONFLICT (id_utente, id_chat) DO UPDATE SET id_messaggio = GREATEST(cursore.id_messaggio, EXCLUDED.id_messaggio)";
+        try (Connection conn = connect("saveCursors");
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (long[] row : rows) {
+                ps.setInt(1, (int) row[0]);
+                ps.setInt(2, (int) row[1]);
+                ps.setLong(3, row[2]);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static Message toMessage(ResultSet rs, int chatId) throws SQLException {
+        Timestamp time = rs.getTimestamp("time");
+        return new Message(rs.getInt("id_utente"), rs.getString("content").getBytes(StandardCharsets.UTF_8),
+                rs.getLong("id_messaggio"), chatId, time != null ? time.getTime() : System.currentTimeMillis(),
+                rs.getLong("seq"));
+    }
+
+    // Recupera tutte le chat (DM e Gruppo)
+    public List<Chat> getAllChats() throws SQLException {
+        try (Connection conn = connect("getAllChats");
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id_chat, tipo FROM chat ORDER BY id_chat")) {
+            Map<Integer, String> tipi = new LinkedHashMap<>();
+            while (rs.next()) {
+                tipi.put(rs.getInt("id_chat"), rs.getString("tipo"));
+            }
+            return loadChats(conn, tipi, null);
+        }
     }
 
     public List<Chat> getAllChatsByUser(int userId) throws SQLException {
-        List<Chat> chats = new ArrayList<>();
         String sql = "SELECT c.id_chat, c.tipo " +
                 "FROM chat c " +
                 "JOIN chatutente cu ON cu.id_chat = c.id_chat " +
-                "WHERE cu.id_utente = ?";
+                "WHERE cu.id_utente = ? " +
+                "ORDER BY c.id_chat";
 
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = connect("getAllChatsByUser");
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, userId);
+            Map<Integer, String> tipi = new LinkedHashMap<>();
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    int chatId = rs.getInt("id_chat");
-                    String tipo = rs.getString("tipo");
-
-                    if (tipo.equalsIgnoreCase("DirectMessage") || tipo.equalsIgnoreCase("DM")) {
-                        List<User> dmUsers = getUsersInChat(chatId);
-                        if (dmUsers.size() == 2) {
-                            DM dm = new DM(chatId, dmUsers.get(0), dmUsers.get(1));
-                            dm.getMessaggi().addAll(getMessagesForChat(chatId));
-                            chats.add(dm);
-                        }
-                    } else if (tipo.equalsIgnoreCase("Gruppo")) {
-                        String groupSql = "SELECT nome FROM gruppo WHERE id_chat = ?";
-                        try (PreparedStatement groupPs = conn.prepareStatement(groupSql)) {
-                            groupPs.setInt(1, chatId);
-                            try (ResultSet groupRs = groupPs.executeQuery()) {
-                                if (groupRs.next()) {
-                                    String nomeGruppo = groupRs.getString("nome");
-                                    Gruppo gruppo = new Gruppo(chatId, nomeGruppo);
-                                    gruppo.getParticipants().addAll(getUsersInChat(chatId));
-                                    gruppo.getMessaggi().addAll(getMessagesForChat(chatId));
-                                    chats.add(gruppo);
-                                }
-                            }
-                        }
-                    }
+                    tipi.put(rs.getInt("id_chat"), rs.getString("tipo"));
                 }
             }
+            if (tipi.isEmpty()) return new ArrayList<>();
+            return loadChats(conn, tipi, conn.createArrayOf("integer", tipi.keySet().toArray()));
         }
-        return chats;
     }
 
+    // Chat con id maggiore di afterId: il delta rispetto a uno snapshot
+    public List<Chat> getChatsAfter(int afterId) throws SQLException {
+        try (Connection conn = connect("getChatsAfter");
+             PreparedStatement ps = conn.prepareStatement("SELECT id_chat, tipo FROM chat WHERE id_chat > ? ORDER BY id_chat")) {
+            ps.setInt(1, afterId);
+            Map<Integer, String> tipi = new LinkedHashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    tipi.put(rs.getInt("id_chat"), rs.getString("tipo"));
+                }
+            }
+            if (tipi.isEmpty()) return new ArrayList<>();
+            return loadChats(conn, tipi, conn.createArrayOf("integer", tipi.keySet().toArray()));
+        }
+    }
 
+    // Costruisce le chat con una query per tabella (partecipanti, nomi dei gruppi)
+    // invece di più query per ogni chat. Se filter è null vengono lette tutte le righe,
+    // altrimenti solo quelle con id_chat = ANY(filter).
+    // I messaggi non vengono caricati: si leggono a pagine con getMessagesPage().
+    private List<Chat> loadChats(Connection conn, Map<Integer, String> tipi, Array filter) throws SQLException {
+        String where = filter == null ? "" : " WHERE cu.id_chat = ANY(?)";
+        Map<Integer, List<User>> partecipanti = new HashMap<>();
+        Map<Integer, User> utenti = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT cu.id_chat, u.id_utente, u.username, u.password, u.status " +
+                "FROM chatutente cu JOIN utente u ON u.id_utente = cu.id_utente" + where)) {
+            if (filter != null) ps.setArray(1, filter);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt("id_utente");
+                    User u = utenti.get(id);
+                    if (u == null) {
+                        u = new User(id, rs.getString("username"), rs.getString("password"), rs.getInt("status") == 1);
+                        utenti.put(id, u);
+                    }
+                    partecipanti.computeIfAbsent(rs.getInt("id_chat"), k -> new ArrayList<>()).add(u);
+                }
+            }
+        }
+
+        where = filter == null ? "" : " WHERE id_chat = ANY(?)";
+        Map<Integer, String> nomi = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT id_chat, nome FROM gruppo" + where)) {
+            if (filter != null) ps.setArray(1, filter);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    nomi.put(rs.getInt("id_chat"), rs.getString("nome"));
+                }
+            }
+        }
+
+        List<Chat> chats = new ArrayList<>();
+        for (Map.Entry<Integer, String> e : tipi.entrySet()) {
+            int chatId = e.getKey();
+            String tipo = e.getValue();
+            List<User> users = partecipanti.getOrDefault(chatId, List.of());
+            Chat chat = null;
 
-    // Chiudi connessione
-    public void close() throws SQLException {
-        if (conn != null) conn.close();
+            if (tipo.equalsIgnoreCase("DirectMessage") || tipo.equalsIgnoreCase("DM")) {
+                if (users.size() == 2) {
+                    chat = new DM(chatId, users.get(0), users.get(1));
+                }
+            } else if (tipo.equalsIgnoreCase("Gruppo")) {
+                String nomeGruppo = nomi.get(chatId);
+                if (nomeGruppo != null) {
+                    Gruppo gruppo = new Gruppo(chatId, nomeGruppo);
+                    gruppo.getParticipants().addAll(users);
+                    chat = gruppo;
+                }
+            }
+
+            if (chat != null) {
+                chats.add(chat);
+            }
+        }
+        return chats;
     }
 }
@@ -0,0 +1,196 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cursori di consegna: per ogni utente e chat l'id dell'ultimo messaggio consegnato.
+// Il cursore avanza dal thread writer della connessione, dopo ogni flush, con gli id scritti sul
+// socket: un messaggio pubblicato ma rimasto in coda alla disconnessione non conta. Al login si inviano
+// tutti i messaggi successivi, a pagine di chat.cursor.pageSize (default 100) in ordine crescente,
+// chat per chat sul worker della chat, così non si mescolano con quelli in diretta. Una chat senza cursore (es. creata mentre l'utente era offline) usa il
+// cursore generale (id_chat = 0): l'id più alto scritto in qualsiasi chat.
+//
+// I cursori si accumulano in memoria e vanno sul DB a blocchi ogni chat.cursor.flushMs (default 1000).
+// La consegna è "almeno una volta": dopo un crash si possono ricevere di nuovo messaggi già visti.
+public class DeliveryCursors {
+    private final DBManager dbManager;
+    private final ChatManager chatManager;
+    private final long flushMs;
+    private final int pageSize;
+
+    // id utente → (id chat → id messaggio) ancora da scrivere
+    private final Map<Integer, Map<Integer, Long>> pending = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    public DeliveryCursors(DBManager dbManager, ChatManager chatManager, long flushMs, int pageSize) {
+        this.dbManager = dbManager;
+        this.chatManager = chatManager;
+        this.flushMs = flushMs;
+        this.pageSize = pageSize;
+    }
+
+    public static DeliveryCursors fromSystemProperties(ChatManager chatManager) {
+        return new DeliveryCursors(new DBManager(), chatManager,
+                Long.getLong("chat.cursor.flushMs", 1000L),
+                Integer.getInteger("chat.cursor.pageSize", 100));
+    }
+
+    public void start() {
+        try {
+            dbManager.createCursorTable();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Impossibile creare la tabella dei cursori");
+        }
+        flusher = new Thread(this::flushLoop, "cursor-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // ferma il thread e scrive i cursori rimasti
+    public void shutdown() {
+        running = false;
+        if (flusher != null) flusher.interrupt();
+        flush();
+    }
+
+    // --------------------
+    // CURSORI
+    // --------------------
+    // lastIds: id chat → ultimo id scritto nel blocco, creata dal writer per questa chiamata
+    public void written(int userId, Map<Integer, Long> lastIds) {
+        long max = 0;
+        for (long id : lastIds.values()) max = Math.max(max, id);
+        lastIds.put(0, max);
+        update(userId, lastIds);
+    }
+
+    public void update(int userId, Map<Integer, Long> cursors) {
+        if (cursors.isEmpty()) return;
+        pending.compute(userId, (k, m) -> {
+            if (m == null) m = new HashMap<>();
+            for (Map.Entry<Integer, Long> e : cursors.entrySet()) m.merge(e.getKey(), e.getValue(), Math::max);
+            return m;
+        });
+    }
+
+    // cursori dal DB più quelli non ancora scritti
+    public Map<Integer, Long> load(int userId) throws SQLException {
+        Map<Integer, Long> cursors = dbManager.getCursors(userId);
+        pending.computeIfPresent(userId, (k, m) -> {
+            for (Map.Entry<Integer, Long> e : m.entrySet()) cursors.merge(e.getKey(), e.getValue(), Math::max);
+            return m;
+        });
+        return cursors;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(flushMs);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // un solo batch per tutti i cursori accumulati; se il DB non risponde si riprova al giro dopo
+    public void flush() {
+        if (pending.isEmpty()) return;
+        Map<Integer, Map<Integer, Long>> batch = new HashMap<>();
+        for (Integer userId : pending.keySet()) {
+            Map<Integer, Long> m = pending.remove(userId);
+            if (m != null) batch.put(userId, m);
+        }
+        List<long[]> rows = new ArrayList<>();
+        batch.forEach((userId, m) -> m.forEach((chatId, id) -> rows.add(new long[]{userId, chatId, id})));
+        try {
+            dbManager.saveCursors(rows);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Errore nel salvataggio dei cursori di consegna");
+            batch.forEach(this::update);
+        }
+    }
+
+    // --------------------
+    // RECUPERO AL LOGIN
+    // --------------------
+    // le letture dal DB avvengono su un virtual thread; il controllo finale, l'invio e la fine del
+    // recupero sul worker di ogni chat, dove gira anche fanOut(): finché la chat è in recupero i
+    // messaggi in diretta restano da parte e partono dopo quelli salvati, senza buchi né doppioni
+    public void catchUp(ClientHandler handler, User u, Set<Integer> chatIds) {
+        Thread.ofVirtual().name("catch-up").start(() -> {
+            Map<Integer, Long> cursors;
+            try {
+                cursors = load(u.getID());
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.out.println("Errore nella lettura dei cursori di " + u.getUsername());
+                cursors = Map.of();
+            }
+            Long fallback = cursors.get(0); // null al primo accesso: niente da recuperare
+
+            AtomicInteger remaining = new AtomicInteger(chatIds.size());
+            AtomicInteger total = new AtomicInteger();
+            for (int chatId : chatIds) {
+                Chat chat = chatManager.getChatByID(chatId);
+                if (chat == null) {
+                    handler.catchUpDone(chatId);
+                    finish(handler, remaining, total);
+                    continue;
+                }
+                Long cursor = cursors.getOrDefault(chatId, fallback);
+                // i messaggi non visti si inviano a pagine, in ordine crescente, dal cursore fino alla
+                // cronologia recente; prima di ogni pagina si aspetta posto nella coda del client
+                Set<Long> sent = new HashSet<>();
+                long last = cursor != null ? cursor : 0;
+                try {
+                    while (cursor != null) {
+                        List<Message> page = chatManager.getMessagesAfter(chat, last, pageSize);
+                        if (page.isEmpty()) break;
+                        if (!handler.awaitOutboundRoom(page.size())) return;
+                        chatManager.execute(chat, () -> {
+                            for (Message m : page) handler.sendMessage(chat, m);
+                        });
+                        for (Message m : page) sent.add(m.getID());
+                        last = page.get(page.size() - 1).getID();
+                        if (page.size() < pageSize) break;
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    System.out.println("Errore nel recupero dei messaggi della chat " + chatId);
+                }
+
+                long from = last;
+                chatManager.execute(chat, () -> {
+                    // i messaggi arrivati durante la lettura sono nella cronologia recente
+                    if (cursor != null) {
+                        for (Message m : chat.getMessaggi()) {
+                            if (m.getID() > from && sent.add(m.getID())) handler.sendMessage(chat, m);
+                        }
+                    }
+                    total.addAndGet(sent.size());
+                    // quelli pubblicati dopo il login, tenuti da parte da fanOut()
+                    for (Message m : handler.catchUpDone(chatId)) {
+                        if (!sent.contains(m.getID())) handler.sendMessage(chat, m);
+                    }
+                    finish(handler, remaining, total);
+                });
+            }
+        });
+    }
+
+    private static void finish(ClientHandler handler, AtomicInteger remaining, AtomicInteger total) {
+        if (remaining.decrementAndGet() == 0 && total.get() > 0) {
+            handler.sendNotice("Recuperati " + total.get() + " messaggi ricevuti mentre eri offline.");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sincronizzazione incrementale con il DB: a intervalli legge solo le righe nuove
+// (utenti, chat, partecipazioni, messaggi) scritte da altre istanze o a mano, e le applica
+// alle mappe in memoria senza ricaricare tutto come loadChatsFromDB().
+//
+// Per utenti, chat e messaggi si tiene il massimo id visto (high-water mark); chatutente non ha
+// un id, quindi si controlla COUNT(*) e solo se cambia si confrontano le coppie.
+// Si attiva con -Dchat.sync.enabled=true, ogni chat.sync.intervalMs (default 1000). Con il cluster
+// (chat.cluster.peers) è sempre attiva: i nodi si passano solo presenza e consegne, la cronologia,
+// le chat e gli utenti creati sugli altri nodi arrivano da qui.
+//
+// Ogni nodo prende gli id a blocchi (IdAllocator) e li scrive quando li usa: nel DB un id più basso
+// può comparire dopo uno più alto. Per questo ogni giro rilegge anche una finestra sotto il mark,
+// chat.sync.lookbackBlocks blocchi di id (default 4), e salta quello che ha già applicato.
+// Un nodo poco attivo che tiene un blocco più a lungo di quanto gli altri ne consumino
+// lookbackBlocks va coperto con una finestra più ampia o con blocchi più piccoli.
+//
+// Il mark dei messaggi si salva su chat.sync.markFile (default data/sync.mark) dopo ogni giro: al
+// riavvio si riparte da lì e si applicano al log locale i messaggi scritti da altri mentre questa
+// istanza era ferma (quelli già nel log vengono saltati). Senza file si parte dal massimo nel DB.
+public class DeltaSync {
+    public static final int LOOKBACK_BLOCKS = Integer.getInteger("chat.sync.lookbackBlocks", 4);
+    // chat e id_chat: una sequenza del DB per inserimento, fuori ordine solo tra transazioni concorrenti
+    private static final int CHAT_LOOKBACK = 100;
+
+    private final DBManager dbManager;
+    private final ChatManager chatManager;
+    private final UserManager userManager;
+    private final long intervalMs;
+    private final int batchSize;
+    private final Path markFile;
+
+    // id dei messaggi scritti da questa istanza: il journal li registra prima del commit,
+    // quindi il polling li riconosce e non li applica due volte
+    private final Set<Long> localMessages = ConcurrentHashMap.newKeySet();
+    // id dei messaggi nella finestra già applicati (o scritti da qui), per non applicarli di nuovo
+    private final Set<Long> seenMessages = new HashSet<>();
+    private final int userLookback;
+    private final long messageLookback;
+
+    private int userMark;
+    private int chatMark;
+    private long messageMark;
+    private long savedMark;
+    private int membershipCount = -1;
+    private volatile boolean running = true;
+    private Thread poller;
+
+    public DeltaSync(DBManager dbManager, ChatManager chatManager, UserManager userManager,
+                     long intervalMs, int batchSize, Path markFile) throws SQLException {
+        this.dbManager = dbManager;
+        this.chatManager = chatManager;
+        this.userManager = userManager;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+        this.markFile = markFile;
+        userLookback = LOOKBACK_BLOCKS * userManager.getUserIdBlockSize();
+        messageLookback = (long) LOOKBACK_BLOCKS * chatManager.getMessageIdBlockSize();
+
+        // si parte da quello che è già in memoria; per i messaggi dal mark salvato, se c'è
+        for (User u : userManager.getUsers()) userMark = Math.max(userMark, u.getID());
+        for (Chat c : chatManager.getChats()) chatMark = Math.max(chatMark, c.getID());
+        Long saved = readMark(markFile);
+        if (saved != null) {
+            messageMark = saved;
+            System.out.println("Sincronizzazione dei messaggi dall'id " + saved);
+        } else {
+            // primo avvio: i messaggi nel DB c'erano già e non vanno applicati
+            messageMark = dbManager.getMaxMessageId();
+            long after = messageMark - messageLookback;
+            List<Message> messages;
+            do {
+                messages = dbManager.getMessagesAfter(after, batchSize);
+                for (Message m : messages) {
+                    if (m.getID() <= messageMark) seenMessages.add(m.getID());
+                    after = m.getID();
+                }
+            } while (messages.size() == batchSize);
+        }
+        savedMark = messageMark;
+        chatManager.getJournal().setInsertListener(localMessages::add);
+    }
+
+    // null se disabilitato o se non si riesce a leggere lo stato iniziale
+    public static DeltaSync fromSystemProperties(ChatManager chatManager, UserManager userManager) {
+        boolean cluster = !System.getProperty("chat.cluster.peers", "").trim().isEmpty();
+        if (!cluster && !Boolean.getBoolean("chat.sync.enabled")) return null;
+        try {
+            return new DeltaSync(new DBManager(), chatManager, userManager,
+                    Long.getLong("chat.sync.intervalMs", 1000L),
+                    Integer.getInteger("chat.sync.batchSize", 1000),
+                    Path.of(System.getProperty("chat.sync.markFile", "data/sync.mark")));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Sincronizzazione incrementale disabilitata");
+            return null;
+        }
+    }
+
+    public void start() {
+        poller = new Thread(this::pollLoop, "delta-sync");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (poller != null) poller.interrupt();
+        saveMark();
+    }
+
+    private void pollLoop() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMs);
+                poll();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Errore nella sincronizzazione con il database");
+            }
+        }
+    }
+
+    // un giro di sincronizzazione; l'ordine conta: prima utenti e chat, poi chi partecipa, poi i messaggi
+    // applyUser e applyChat ignorano chi è già in memoria, quindi la finestra non serve deduplicarla
+    public void poll() throws SQLException {
+        for (User u : dbManager.getUsersAfter(userMark - userLookback)) {
+            userManager.applyUser(u);
+            userMark = Math.max(userMark, u.getID());
+        }
+
+        for (Chat c : dbManager.getChatsAfter(chatMark - CHAT_LOOKBACK)) {
+            chatManager.applyChat(c);
+            chatMark = Math.max(chatMark, c.getID());
+        }
+
+        int count = dbManager.countMemberships();
+        if (count != membershipCount) {
+            chatManager.syncMemberships();
+            membershipCount = count;
+        }
+
+        long after = messageMark - messageLookback;
+        List<Message> messages;
+        do {
+            messages = dbManager.getMessagesAfter(after, batchSize);
+            for (Message m : messages) {
+                long id = m.getID();
+                after = id;
+                if (!seenMessages.add(id)) continue;
+                if (!localMessages.remove(id)) chatManager.applyMessage(m);
+                messageMark = Math.max(messageMark, id);
+            }
+        } while (messages.size() == batchSize && running);
+
+        // sotto la finestra non si rilegge più: gli id lì non servono
+        long floor = messageMark - messageLookback;
+        seenMessages.removeIf(id -> id <= floor);
+        localMessages.removeIf(id -> id <= floor);
+        saveMark();
+    }
+
+    // --------------------
+    // MARK SU FILE
+    // --------------------
+    private static Long readMark(Path path) {
+        try {
+            return Long.parseLong(Files.readString(path, StandardCharsets.US_ASCII).trim());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            System.out.println("Mark di sincronizzazione " + path + " non leggibile, verrà ignorato");
+            return null;
+        }
+    }
+
+    // scrittura atomica (file temporaneo + rename), solo se il mark è cambiato
+    private synchronized void saveMark() {
+        long mark = messageMark;
+        if (mark == savedMark) return;
+        try {
+            Path dir = markFile.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "sync", ".tmp");
+            Files.writeString(tmp, Long.toString(mark), StandardCharsets.US_ASCII);
+            Files.move(tmp, markFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedMark = mark;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Impossibile salvare il mark di sincronizzazione");
+        }
+    }
+}
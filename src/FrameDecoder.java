@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Divide un flusso di byte in frame BinaryProtocol, anche quando un frame arriva
+// in più letture. chatId e contenuto vengono letti direttamente dal ByteBuffer; il contenuto di
+// SEND resta in byte UTF-8 fino al socket dei destinatari, senza passare da String.
+public class FrameDecoder {
+    private ByteBuffer pending = ByteBuffer.allocate(1024);
+
+    public void feed(ByteBuffer buffer, ProtocolDecoder.Listener listener) throws IOException {
+        if (pending.remaining() < buffer.remaining()) grow(buffer.remaining());
+        pending.put(buffer);
+        pending.flip();
+
+        try {
+            while (true) {
+                int length = BinaryProtocol.peekVarint(pending);
+                if (length < 0) break;
+                if (length == 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Lunghezza frame non valida: " + length);
+                }
+                int header = BinaryProtocol.varintSize(length);
+                if (pending.remaining() < header + length) break;
+
+                pending.position(pending.position() + header);
+                int end = pending.position() + length;
+                decode(pending, end, listener);
+                pending.position(end);
+            }
+        } finally {
+            pending.compact();
+        }
+    }
+
+    private void decode(ByteBuffer frame, int end, ProtocolDecoder.Listener listener) throws IOException {
+        byte type = frame.get();
+        switch (type) {
+            case BinaryProtocol.TEXT -> listener.onLine(utf8(frame, end));
+            case BinaryProtocol.SEND -> {
+                int chatId = BinaryProtocol.readVarint(frame, end);
+                if (frame.position() > end) throw new IOException("Frame SEND troncato");
+                byte[] content = new byte[end - frame.position()];
+                frame.get(content);
+                listener.onChatMessage(chatId, content);
+            }
+            default -> throw new IOException("Tipo di frame sconosciuto: " + type);
+        }
+    }
+
+    private static String utf8(ByteBuffer frame, int end) {
+        int pos = frame.position();
+        String s;
+        if (frame.hasArray()) {
+            s = new String(frame.array(), frame.arrayOffset() + pos, end - pos, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[end - pos];
+            frame.get(pos, bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        frame.position(end);
+        return s;
+    }
+
+    private void grow(int needed) {
+        int size = Math.max(pending.capacity() * 2, pending.position() + needed);
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        pending.flip();
+        bigger.put(pending);
+        pending = bigger;
+    }
+}
@@ -1,14 +1,14 @@
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Gruppo extends Chat {
     private String nome;
-    private List<User> participants;
+    private CopyOnWriteArrayList<User> participants;
 
     public Gruppo(int ID, String nome) {
         super(ID);
         this.nome = nome;
-        this.participants = new ArrayList<>();
+        this.participants = new CopyOnWriteArrayList<>();
     }
 
     public String getNome(){
@@ -30,9 +30,7 @@ public class Gruppo extends Chat {
     }
 
     public void addParticipant(User u) {
-        if (!participants.contains(u)) {
-            participants.add(u);
-        }
+        participants.addIfAbsent(u);
     }
 
     public void removeParticipant(User u) {
@@ -0,0 +1,89 @@
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Id univoci presi dalla sequenza del DB a blocchi (nextval × blockSize in una query):
+// next() non fa accessi al DB finché il blocco non finisce, e a metà blocco il successivo
+// viene già richiesto in background. Gli id restano univoci tra riavvii e tra nodi.
+// Se la richiesta in background fallisce il blocco si chiede di nuovo subito, con qualche tentativo.
+public class IdAllocator {
+    private static final int ATTEMPTS = 3;
+    private static final long BACKOFF_MS = 100;
+
+    private final DBManager dbManager;
+    private final String table;
+    private final String column;
+    private final int blockSize;
+
+    private long[] block;
+    private int next;
+    private CompletableFuture<long[]> prefetch;
+
+    public IdAllocator(DBManager dbManager, String table, String column, int blockSize) {
+        this.dbManager = dbManager;
+        this.table = table;
+        this.column = column;
+        this.blockSize = blockSize;
+    }
+
+    public synchronized long next() {
+        if (block == null || next == block.length) {
+            CompletableFuture<long[]> pending = prefetch;
+            prefetch = null;
+            long[] ids = null;
+            if (pending != null) {
+                try {
+                    ids = join(pending);
+                } catch (IllegalStateException e) {
+                    System.out.println("Richiesta anticipata di id per " + table + " fallita, nuovo tentativo");
+                }
+            }
+            block = ids != null ? ids : fetchWithRetry();
+            next = 0;
+        }
+        if (next == block.length / 2 && prefetch == null) {
+            prefetch = CompletableFuture.supplyAsync(this::fetch, r -> Thread.ofVirtual().start(r));
+        }
+        return block[next++];
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // se fallisce anche l'ultimo tentativo l'eccezione arriva al chiamante; block non cambia,
+    // quindi la prossima next() riprova
+    private long[] fetchWithRetry() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return fetch();
+            } catch (IllegalStateException e) {
+                if (attempt == ATTEMPTS) throw e;
+                try {
+                    Thread.sleep(BACKOFF_MS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private long[] fetch() {
+        try {
+            long[] ids = dbManager.nextIds(table, column, blockSize);
+            if (ids.length == 0) throw new IllegalStateException("Nessun id ricevuto per " + table);
+            return ids;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Impossibile ottenere id per " + table + " dal database", e);
+        }
+    }
+
+    private static long[] join(CompletableFuture<long[]> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException r ? r : e;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// Spezza un flusso di byte in righe terminate da '\n' (il '\r' finale viene scartato),
+// come farebbe BufferedReader.readLine() ma senza bloccare.
+public class LineFramer {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    // consuma tutti i byte disponibili nel buffer e passa ogni riga completa a onLine
+    public void feed(ByteBuffer buffer, Consumer<String> onLine) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                byte[] bytes = pending.toByteArray();
+                int len = bytes.length;
+                if (len > 0 && bytes[len - 1] == '\r') len--;
+                pending.reset();
+                onLine.accept(new String(bytes, 0, len, StandardCharsets.UTF_8));
+            } else {
+                if (pending.size() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Riga troppo lunga");
+                }
+                pending.write(b);
+            }
+        }
+    }
+}
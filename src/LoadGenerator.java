@@ -0,0 +1,323 @@
+package client;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Generatore di carico headless basato sul protocollo testuale di DebugClient.
+// Apre molti utenti simulati, li registra, crea DM e gruppi con /newdm, /newgroup e /add,
+// poi invia messaggi a ritmo costante e misura la latenza dall'invio alla ricezione
+// su ogni destinatario. Con load.reconnects > 0 alla fine tutti gli utenti si disconnettono e
+// si riconnettono insieme (reconnect storm), con il token di sessione o con la password
+// (load.resume=false), e si misurano i login al secondo.
+//
+// Da usare contro un server locale; tutti gli utenti arrivano dallo stesso IP, quindi il limite
+// di login per IP va alzato. Senza PostgreSQL il server gira con il DB finto StubDriver
+// (chat.db.stub.latencyUs simula il round trip), es.:
+//   java -Dchat.db.url=jdbc:stub -Dchat.db.stub.latencyUs=500 -Dchat.auth.ipBurst=100000 Server nio
+//   java -Dload.users=2000 -Dload.rate=2 client.LoadGenerator localhost 12345
+// Con un DB vero: -Dchat.db.url=jdbc:postgresql://localhost/chat?user=chat
+public class LoadGenerator {
+    private static final long START = System.nanoTime();
+
+    private final String host;
+    private final int port;
+    private final int users = Integer.getInteger("load.users", 100);
+    private final int groupSize = Integer.getInteger("load.groupSize", 10);
+    private final double ratePerUser = Double.parseDouble(System.getProperty("load.rate", "1")); // messaggi/s per utente
+    private final int durationSec = Integer.getInteger("load.durationSec", 30);
+    private final int[] sizes = Arrays.stream(System.getProperty("load.sizes", "32,32,32,256,1024").split(","))
+            .mapToInt(Integer::parseInt).toArray();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final int reconnects = Integer.getInteger("load.reconnects", 0);
+    private final boolean resume = Boolean.parseBoolean(System.getProperty("load.resume", "true"));
+
+    private final List<SimUser> simUsers = new ArrayList<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private volatile boolean measuring;
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void run() throws Exception {
+        System.out.println("Connessione di " + users + " utenti...");
+        for (int i = 0; i < users; i++) {
+            SimUser u = new SimUser(i);
+            u.connect();
+            simUsers.add(u);
+        }
+        for (SimUser u : simUsers) u.register();
+
+        System.out.println("Creazione delle chat...");
+        for (int i = 0; i + 1 < users; i += 2) {
+            SimUser a = simUsers.get(i), b = simUsers.get(i + 1);
+            int chatId = a.createChat("/newdm " + b.username, "DM creata! ID=");
+            a.chats.add(chatId);
+            b.chats.add(chatId);
+        }
+        for (int start = 0; start < users; start += groupSize) {
+            SimUser owner = simUsers.get(start);
+            int chatId = owner.createChat("/newgroup g" + runId + "_" + start, "Gruppo creato! ID=");
+            owner.chats.add(chatId);
+            for (int i = start + 1; i < Math.min(start + groupSize, users); i++) {
+                SimUser member = simUsers.get(i);
+                owner.command("/add " + chatId + " " + member.username, "Utente aggiunto!");
+                member.chats.add(chatId);
+            }
+        }
+
+        System.out.println("Invio messaggi per " + durationSec + " s...");
+        measuring = true;
+        long begin = System.nanoTime();
+        List<Thread> senders = new ArrayList<>();
+        for (SimUser u : simUsers) {
+            senders.add(Thread.ofVirtual().start(() -> u.sendLoop(begin + TimeUnit.SECONDS.toNanos(durationSec))));
+        }
+        for (Thread t : senders) t.join();
+        Thread.sleep(2000); // lascia arrivare gli ultimi messaggi
+        measuring = false;
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        report(elapsed);
+        if (reconnects > 0) reconnectStorm();
+        for (SimUser u : simUsers) u.close();
+    }
+
+    // tutti gli utenti si riconnettono nello stesso momento, per reconnects volte
+    private void reconnectStorm() throws InterruptedException {
+        System.out.println("Reconnect storm: " + reconnects + " giri da " + users + " utenti ("
+                + (resume ? "token di sessione" : "password") + ")...");
+        long[] all = new long[reconnects * users];
+        LongAdder failed = new LongAdder();
+        int pos = 0;
+        long begin = System.nanoTime();
+        for (int round = 0; round < reconnects; round++) {
+            long[] times = new long[users];
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                SimUser u = simUsers.get(i);
+                int slot = i;
+                threads.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        times[slot] = u.reconnect();
+                    } catch (Exception e) {
+                        times[slot] = -1;
+                        failed.increment();
+                    }
+                }));
+            }
+            for (Thread t : threads) t.join();
+            for (long t : times) if (t >= 0) all[pos++] = t;
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long[] ok = Arrays.copyOf(all, pos);
+        Arrays.sort(ok);
+
+        System.out.println("--- RECONNECT STORM ---");
+        System.out.printf("login=%d (%.0f login/s)  falliti=%d%n", ok.length, ok.length / elapsed, failed.sum());
+        if (ok.length > 0) {
+            System.out.printf("latenza login: p50=%.2f ms  p99=%.2f ms  max=%.2f ms%n",
+                    percentile(ok, 0.50), percentile(ok, 0.99), ok[ok.length - 1] / 1e6);
+        }
+    }
+
+    private void report(double elapsed) {
+        List<long[]> perUser = new ArrayList<>();
+        long total = 0;
+        for (SimUser u : simUsers) {
+            long[] l = u.latencies();
+            perUser.add(l);
+            total += l.length;
+        }
+        long[] all = new long[(int) total];
+        int pos = 0;
+        for (long[] l : perUser) {
+            System.arraycopy(l, 0, all, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(all);
+
+        System.out.println("--- RISULTATI ---");
+        System.out.printf("utenti=%d  inviati=%d (%.0f msg/s)  consegnati=%d (%.0f msg/s)%n",
+                users, sent.sum(), sent.sum() / elapsed, delivered.sum(), delivered.sum() / elapsed);
+        if (all.length > 0) {
+            System.out.printf("latenza consegna: p50=%.2f ms  p99=%.2f ms  p999=%.2f ms  max=%.2f ms%n",
+                    percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), all[all.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    private class SimUser {
+        private final int index;
+        private final String username;
+        private final List<Integer> chats = new CopyOnWriteArrayList<>();
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private Socket socket;
+        private PrintWriter out;
+        private String token;
+
+        // scritte dal thread che legge le risposte di questo utente, lette da report():
+        // sempre con il lock di questo SimUser
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+
+        SimUser(int index) {
+            this.index = index;
+            this.username = "load" + runId + "_" + index;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread.ofVirtual().start(() -> listen(in));
+        }
+
+        void register() throws InterruptedException {
+            authenticate("register", username, "pw");
+        }
+
+        // chiude la connessione, si ricollega e rifà il login; restituisce la durata in nanosecondi
+        long reconnect() throws IOException, InterruptedException {
+            close();
+            replies.clear();
+            long begin = System.nanoTime();
+            connect();
+            expect("Benvenuto! ");
+            if (resume) {
+                authenticate("resume " + token);
+            } else {
+                authenticate("login", username, "pw");
+            }
+            return System.nanoTime() - begin;
+        }
+
+        // se il server rifiuta per troppi tentativi o per carico si riprova dopo una pausa
+        private void authenticate(String... lines) throws InterruptedException {
+            while (true) {
+                for (String line : lines) out.println(line);
+                String reply = expect("Benvenuto, ", "Troppi tentativi", "Server occupato");
+                if (reply.startsWith("Benvenuto, ")) break;
+                Thread.sleep(200 + ThreadLocalRandom.current().nextInt(200));
+            }
+            String reply = expect("Token di sessione: ");
+            token = reply.substring("Token di sessione: ".length()).split(" ")[0];
+        }
+
+        int createChat(String command, String prefix) throws InterruptedException {
+            String reply = command(command, prefix);
+            return Integer.parseInt(reply.substring(prefix.length()).trim());
+        }
+
+        String command(String command, String prefix) throws InterruptedException {
+            out.println(command);
+            return expect(prefix);
+        }
+
+        private String expect(String... prefixes) throws InterruptedException {
+            while (true) {
+                String line = replies.poll(10, TimeUnit.SECONDS);
+                if (line == null) {
+                    throw new IllegalStateException(username + ": nessuna risposta che inizi con '" + prefixes[0] + "'");
+                }
+                for (String prefix : prefixes) {
+                    if (line.startsWith(prefix)) return line;
+                }
+            }
+        }
+
+        void sendLoop(long end) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = (long) (1e9 / ratePerUser);
+            long next = System.nanoTime() + random.nextLong(interval);
+            while (next < end) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                int chatId = chats.get(random.nextInt(chats.size()));
+                int size = sizes[random.nextInt(sizes.length)];
+                out.println(chatId + "|" + payload(size));
+                sent.increment();
+                next += interval;
+            }
+        }
+
+        // "t=<nanosecondi dall'avvio>;u=<indice mittente>;" seguito da riempimento fino a size
+        private String payload(int size) {
+            StringBuilder sb = new StringBuilder(size);
+            sb.append("t=").append(System.nanoTime() - START).append(";u=").append(index).append(';');
+            while (sb.length() < size) sb.append('x');
+            return sb.toString();
+        }
+
+        private void listen(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("[")) {
+                        onMessage(line);
+                    } else {
+                        replies.add(line);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        // "[chat] mittente: t=...;u=...;xxx"
+        private void onMessage(String line) {
+            long now = System.nanoTime() - START;
+            int t = line.indexOf(": t=");
+            if (t < 0) return;
+            int semi = line.indexOf(';', t);
+            int uEnd = line.indexOf(';', semi + 1);
+            if (semi < 0 || uEnd < 0) return;
+            if (Integer.parseInt(line.substring(semi + 3, uEnd)) == index) return; // eco del proprio messaggio
+            if (!measuring) return;
+
+            record(now - Long.parseLong(line.substring(t + 4, semi)));
+            delivered.increment();
+        }
+
+        private synchronized void record(long latency) {
+            if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            latencies[latencyCount++] = latency;
+        }
+
+        synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        new LoadGenerator(host, port).run();
+    }
+}
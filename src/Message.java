@@ -1,52 +1,72 @@
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
 
 
+// Rappresentazione compatta: id numerici, timestamp in millisecondi epoch e contenuto
+// già codificato in UTF-8 (è anche il formato in cui viene scritto sul socket).
+// seq è la posizione del messaggio nella sua chat (1, 2, 3...), 0 se non assegnata.
 public class Message {
-    private String senderID;
-    private String content;
-    private LocalDateTime timestamp;
-    private String ID;
-    private String chatID;
+    private int senderID;
+    private byte[] content;
+    private long timestamp;
+    private long ID;
+    private int chatID;
+    private long seq;
 
-    public Message(String senderID, String content, String ID, String chatID) {
+    public Message(int senderID, String content, long ID, int chatID) {
+        this(senderID, content.getBytes(StandardCharsets.UTF_8), ID, chatID, System.currentTimeMillis());
+    }
+
+    public Message(int senderID, byte[] content, long ID, int chatID, long timestamp) {
+        this(senderID, content, ID, chatID, timestamp, 0);
+    }
+
+    public Message(int senderID, byte[] content, long ID, int chatID, long timestamp, long seq) {
         this.senderID = senderID;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.ID = ID;
         this.chatID = chatID;
+        this.seq = seq;
     }
 
-    public String getSenderID() {
+    public int getSenderID() {
         return senderID;
     }
 
     public String getContent() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    public byte[] getContentBytes() {
         return content;
     }
 
-    public LocalDateTime getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
-    public String getID() {
+    public long getID() {
         return ID;
     }
-    public String getChatID() {
+    public int getChatID() {
         return chatID;
     }
+    public long getSeq() {
+        return seq;
+    }
 
     public void setContent(String content) {
-        this.content = content;
+        this.content = content.getBytes(StandardCharsets.UTF_8);
     }
 
-    public void setChatID(String chatID) {
+    public void setChatID(int chatID) {
         this.chatID = chatID;
     }
 
-    public void setSenderID(String senderID) {
+    public void setSenderID(int senderID) {
         this.senderID = senderID;
     }
 
-    public void setID(String ID) {
+    public void setID(long ID) {
         this.ID = ID;
     }
-}
\ No newline at end of file
+}
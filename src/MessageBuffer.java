@@ -0,0 +1,50 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Buffer circolare con gli ultimi N messaggi di una chat: quando è pieno
+// il messaggio più vecchio viene sovrascritto.
+public class MessageBuffer {
+    private final Message[] ring;
+    private int head; // posizione del prossimo inserimento
+    private int size;
+
+    public MessageBuffer(int capacity) {
+        ring = new Message[capacity];
+    }
+
+    public void add(Message m) {
+        ring[head] = m;
+        head = (head + 1) % ring.length;
+        if (size < ring.length) size++;
+    }
+
+    // gli ultimi n messaggi, dal più vecchio al più recente
+    public List<Message> tail(int n) {
+        int count = Math.min(n, size);
+        List<Message> result = new ArrayList<>(count);
+        int start = head - count + ring.length;
+        for (int i = 0; i < count; i++) {
+            result.add(ring[(start + i) % ring.length]);
+        }
+        return result;
+    }
+
+    public List<Message> toList() {
+        return tail(size);
+    }
+
+    public void clear() {
+        Arrays.fill(ring, null);
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+}
@@ -0,0 +1,224 @@
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+// Persistenza write-behind dei messaggi: il ClientHandler accoda il messaggio e un thread
+// dedicato li scrive nel DB a blocchi (executeBatch), quando il blocco è pieno oppure
+// allo scadere della finestra di flush.
+//
+// append() non blocca mai (gira sul worker della chat): la backpressure la fa awaitSpace(), che il
+// client chiama sul proprio thread prima di inviare. Un blocco che fallisce per un errore
+// transitorio (connessione, pool esaurito) si riprova con attesa crescente finché il server è
+// attivo; se l'errore dipende dai dati si riprova un messaggio alla volta, così solo quelli
+// sbagliati vanno persi. L'inserimento ignora gli id già presenti: riprovare non crea doppioni.
+public class MessageJournal {
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final int SHUTDOWN_ATTEMPTS = 3; // tentativi per blocco durante lo spegnimento
+
+    public enum Durability {
+        FIRE_AND_FORGET, // il messaggio viene inoltrato subito, la scrittura avviene dopo
+        ACK_AFTER_FLUSH  // il messaggio viene inoltrato solo dopo essere stato scritto nel DB
+    }
+
+    private final DBManager dbManager;
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long offerTimeoutMs;
+    private final Durability durability;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile LongConsumer insertListener; // riceve gli id scritti, prima del commit
+    // awaitSpace() aspetta qui che il flusher svuoti la coda
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    private final Condition space = spaceLock.newCondition();
+
+    public MessageJournal(DBManager dbManager, int capacity, int batchSize, long flushIntervalMs,
+                          long offerTimeoutMs, Durability durability) {
+        this.dbManager = dbManager;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.durability = durability;
+
+        flusher = new Thread(this::flushLoop, "message-journal");
+        flusher.start();
+    }
+
+    public static MessageJournal fromSystemProperties(DBManager dbManager) {
+        return new MessageJournal(
+                dbManager,
+                Integer.getInteger("chat.journal.capacity", 10000),
+                Integer.getInteger("chat.journal.batchSize", 500),
+                Long.getLong("chat.journal.flushIntervalMs", 50L),
+                Long.getLong("chat.journal.offerTimeoutMs", 1000L),
+                Durability.valueOf(System.getProperty("chat.journal.durability", "FIRE_AND_FORGET").toUpperCase())
+        );
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setInsertListener(LongConsumer insertListener) {
+        this.insertListener = insertListener;
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    // accoda il messaggio senza mai bloccare: se la coda è piena il future fallisce subito
+    public CompletableFuture<Void> append(Message message) {
+        Entry entry = new Entry(message);
+        if (!running) {
+            entry.done.completeExceptionally(new IllegalStateException("Journal chiuso"));
+        } else if (!queue.offer(entry)) {
+            entry.done.completeExceptionally(new IllegalStateException("Journal pieno, messaggio non salvato"));
+        }
+        return entry.done;
+    }
+
+    // backpressure sul thread di chi invia: aspetta al massimo offerTimeoutMs che la coda abbia
+    // posto. false se è ancora piena (il messaggio va rifiutato)
+    public boolean awaitSpace() throws InterruptedException {
+        if (queue.remainingCapacity() > 0) return true;
+        long remaining = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+        spaceLock.lock();
+        try {
+            while (queue.remainingCapacity() == 0) {
+                if (remaining <= 0 || !running) return false;
+                remaining = space.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private void signalSpace() {
+        spaceLock.lock();
+        try {
+            space.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // riempie il blocco fino a batchSize o fino alla fine della finestra
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) break;
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                signalSpace();
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Entry> batch) throws InterruptedException {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Entry e : batch) messages.add(e.message);
+
+        SQLException error = write(messages);
+        if (error == null) {
+            for (Entry e : batch) e.done.complete(null);
+            return;
+        }
+        if (transientError(error)) {
+            // spegnimento con il DB irraggiungibile: i messaggi restano solo nel log locale
+            System.out.println("Impossibile salvare " + batch.size() + " messaggi nel database durante lo spegnimento");
+            for (Entry e : batch) e.done.completeExceptionally(error);
+            return;
+        }
+        // errore nei dati: un messaggio alla volta, falliscono solo quelli che non passano
+        for (Entry e : batch) {
+            SQLException single = write(List.of(e.message));
+            if (single == null) {
+                e.done.complete(null);
+            } else {
+                single.printStackTrace();
+                System.out.println("Messaggio " + e.message.getID() + " scartato: " + single.getMessage());
+                e.done.completeExceptionally(single);
+            }
+        }
+    }
+
+    // scrive il blocco riprovando gli errori transitori con attesa crescente; null se è andato a buon fine.
+    // Durante lo spegnimento i tentativi sono limitati
+    private SQLException write(List<Message> messages) throws InterruptedException {
+        long backoff = 100;
+        int attempts = 0;
+        while (true) {
+            try {
+                dbManager.addMessages(messages, insertListener);
+                return null;
+            } catch (SQLException ex) {
+                attempts++;
+                if (!transientError(ex) || (!running && attempts >= SHUTDOWN_ATTEMPTS)) return ex;
+                if (attempts == 1) {
+                    ex.printStackTrace();
+                    System.out.println("Errore nel salvataggio di " + messages.size() + " messaggi nel database, riprovo");
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+        }
+    }
+
+    // connessione persa, pool esaurito, transazione annullata dal DB, risorse insufficienti
+    private static boolean transientError(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException || state == null
+                || state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57");
+    }
+
+    // chiude il journal e aspetta che i messaggi in coda siano scritti:
+    // il flusher se ne accorge al massimo dopo flushIntervalMs
+    public void shutdown() {
+        running = false;
+        signalSpace();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(Message message) {
+            this.message = message;
+        }
+    }
+}
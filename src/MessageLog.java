@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Log locale append-only dei messaggi, una cartella per chat con segmenti di dimensione fissa
+// mappati in memoria (fuori dallo heap). Al riavvio la cronologia recente si legge dai segmenti;
+// al DB remoto si chiedono solo i messaggi successivi all'ultimo del log (ChatManager). Il DB resta
+// la fonte di verità per la cronologia più vecchia.
+//
+// Record: [int lunghezza][long id][long seq][int mittente][long timestamp][contenuto UTF-8]
+// La lunghezza viene scritta per ultima: un record interrotto a metà ha lunghezza 0 e viene ignorato.
+// I segmenti del formato precedente (.seg, senza seq) vengono eliminati all'apertura della chat:
+// la cronologia torna dal DB come per una chat senza log.
+//
+// Ogni segmento è una mappatura del processo e Linux ne concede al massimo vm.max_map_count
+// (65530 di default): restano aperte solo le openChats chat usate più di recente, le altre vengono
+// chiuse e i loro segmenti smappati. La lettura di una chat senza cartella non la crea.
+//
+// I messaggi degli altri nodi arrivano con id non in ordine: un segmento ricorda se i suoi id
+// crescono e, se no, le letture lo scorrono tutto invece di usare la ricerca binaria.
+public class MessageLog {
+    private static final int HEADER = 4;
+    private static final int FIXED = 8 + 8 + 4 + 8;
+    private static final String SUFFIX = ".seg2";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int openChats;
+
+    // chat con i segmenti mappati, in ordine di accesso (LRU)
+    private final Map<Integer, ChatLog> logs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ChatLog> eldest) {
+            if (size() > openChats) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public MessageLog(Path dir, int segmentBytes, int maxSegments, int openChats) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.openChats = openChats;
+        Files.createDirectories(dir);
+    }
+
+    // null se il log è disabilitato con -Dchat.log.enabled=false o non si può creare la cartella
+    public static MessageLog fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) return null;
+        try {
+            return new MessageLog(
+                    Path.of(System.getProperty("chat.log.dir", "data/log")),
+                    Integer.getInteger("chat.log.segmentBytes", 1024 * 1024),
+                    Integer.getInteger("chat.log.maxSegments", 16),
+                    Integer.getInteger("chat.log.openChats", 1024)
+            );
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Log dei messaggi disabilitato");
+            return null;
+        }
+    }
+
+    public void append(Message m) {
+        withChat(m.getChatID(), true, log -> {
+            log.append(m);
+            return null;
+        });
+    }
+
+    public void appendAll(List<Message> messages) {
+        for (Message m : messages) append(m);
+    }
+
+    // gli ultimi n messaggi della chat per id, dal più vecchio al più recente
+    public List<Message> recent(int chatId, int n) {
+        return before(chatId, Long.MAX_VALUE, n);
+    }
+
+    // gli ultimi n messaggi con id < beforeId, dal più vecchio al più recente
+    public List<Message> before(int chatId, long beforeId, int n) {
+        List<Message> page = withChat(chatId, false, log -> log.before(beforeId, n));
+        return page != null ? page : List.of();
+    }
+
+    public boolean isEmpty(int chatId) {
+        Boolean empty = withChat(chatId, false, ChatLog::isEmpty);
+        return empty == null || empty;
+    }
+
+    // forza su disco le pagine modificate
+    public void flush() {
+        List<ChatLog> open;
+        synchronized (logs) {
+            open = new ArrayList<>(logs.values());
+        }
+        for (ChatLog log : open) log.flush();
+    }
+
+    // esegue action sul log della chat, aprendolo se serve; null se la chat non ha un log e create
+    // è false. Un log chiuso dall'LRU tra la ricerca e il lock viene riaperto
+    private <T> T withChat(int chatId, boolean create, Function<ChatLog, T> action) {
+        while (true) {
+            ChatLog log;
+            synchronized (logs) {
+                log = logs.get(chatId);
+                if (log == null) {
+                    Path chatDir = dir.resolve("chat-" + chatId);
+                    if (!create && !Files.isDirectory(chatDir)) return null;
+                    try {
+                        log = new ChatLog(chatId, chatDir);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    logs.put(chatId, log);
+                }
+            }
+            synchronized (log) {
+                if (!log.closed) return action.apply(log);
+            }
+        }
+    }
+
+    private class ChatLog {
+        private final int chatId;
+        private final Path dir;
+        private final List<Segment> segments = new ArrayList<>();
+        private boolean closed;
+
+        ChatLog(int chatId, Path dir) throws IOException {
+            this.chatId = chatId;
+            this.dir = dir;
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                List<Path> paths = files.sorted().toList();
+                for (Path p : paths) {
+                    String name = p.getFileName().toString();
+                    if (name.endsWith(SUFFIX)) {
+                        segments.add(new Segment(p, Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+                    } else if (name.endsWith(".seg")) {
+                        Files.deleteIfExists(p);
+                    }
+                }
+            }
+        }
+
+        synchronized void append(Message m) {
+            byte[] content = m.getContentBytes();
+            int size = HEADER + FIXED + content.length;
+            if (size > segmentBytes) throw new IllegalArgumentException("Messaggio troppo grande per un segmento");
+
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || !active.fits(size)) active = roll();
+            active.append(m, content);
+        }
+
+        // nuovo segmento attivo; oltre maxSegments il più vecchio viene eliminato
+        private Segment roll() {
+            try {
+                long base = 0;
+                if (!segments.isEmpty()) {
+                    Segment last = segments.get(segments.size() - 1);
+                    last.buffer.force();
+                    base = last.baseIndex + last.count;
+                }
+                Segment s = new Segment(dir.resolve(String.format("%020d" + SUFFIX, base)), base);
+                segments.add(s);
+                while (segments.size() > maxSegments) {
+                    Segment old = segments.remove(0);
+                    old.unmap();
+                    Files.deleteIfExists(old.path);
+                }
+                return s;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // dai segmenti più recenti ai più vecchi; ci si ferma quando ci sono n messaggi e nessun
+        // segmento più vecchio può averne uno con id maggiore del più piccolo trovato
+        synchronized List<Message> before(long beforeId, int n) {
+            List<Message> result = new ArrayList<>();
+            long minFound = Long.MAX_VALUE;
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment s = segments.get(i);
+                if (result.size() >= n && s.maxId < minFound) break;
+                if (s.sorted) {
+                    // id crescenti: ricerca binaria del primo record con id >= beforeId
+                    int lo = 0, hi = s.count;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (s.idAt(mid) < beforeId) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    for (int r = lo - 1; r >= Math.max(0, lo - n); r--) result.add(s.read(r, chatId));
+                } else {
+                    for (int r = 0; r < s.count; r++) {
+                        if (s.idAt(r) < beforeId) result.add(s.read(r, chatId));
+                    }
+                }
+                result.sort(Comparator.comparingLong(Message::getID));
+                if (result.size() > n) result = new ArrayList<>(result.subList(result.size() - n, result.size()));
+                if (!result.isEmpty()) minFound = result.get(0).getID();
+            }
+            return result;
+        }
+
+        synchronized boolean isEmpty() {
+            for (Segment s : segments) {
+                if (s.count > 0) return false;
+            }
+            return true;
+        }
+
+        synchronized void flush() {
+            if (!closed && !segments.isEmpty()) segments.get(segments.size() - 1).buffer.force();
+        }
+
+        // chiamato dall'LRU: scrive il segmento attivo e smappa tutti i segmenti
+        synchronized void close() {
+            flush();
+            closed = true;
+            for (Segment s : segments) s.unmap();
+            segments.clear();
+        }
+    }
+
+    private class Segment {
+        private final Path path;
+        private final long baseIndex;
+        private final MappedByteBuffer buffer;
+        private int[] offsets = new int[64]; // posizione di ogni record nel segmento
+        private int count;
+        private int writePos;
+        private long maxId = Long.MIN_VALUE;
+        private boolean sorted = true; // id strettamente crescenti in ordine di scrittura
+
+        Segment(Path path, long baseIndex) throws IOException {
+            this.path = path;
+            this.baseIndex = baseIndex;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            scan();
+        }
+
+        // ricostruisce l'indice degli offset leggendo i record già presenti
+        private void scan() {
+            int pos = 0;
+            while (pos + HEADER <= segmentBytes) {
+                int len = buffer.getInt(pos);
+                if (len <= 0 || pos + HEADER + len > segmentBytes) break;
+                addOffset(pos);
+                track(buffer.getLong(pos + HEADER));
+                pos += HEADER + len;
+            }
+            writePos = pos;
+        }
+
+        boolean fits(int size) {
+            return writePos + size <= segmentBytes;
+        }
+
+        void append(Message m, byte[] content) {
+            int pos = writePos;
+            buffer.putLong(pos + HEADER, m.getID());
+            buffer.putLong(pos + HEADER + 8, m.getSeq());
+            buffer.putInt(pos + HEADER + 16, m.getSenderID());
+            buffer.putLong(pos + HEADER + 20, m.getTimestamp());
+            buffer.put(pos + HEADER + FIXED, content);
+            buffer.putInt(pos, FIXED + content.length);
+            addOffset(pos);
+            track(m.getID());
+            writePos = pos + HEADER + FIXED + content.length;
+        }
+
+        long idAt(int record) {
+            return buffer.getLong(offsets[record] + HEADER);
+        }
+
+        // legge il record direttamente dalla memoria mappata
+        Message read(int record, int chatId) {
+            int pos = offsets[record];
+            int len = buffer.getInt(pos);
+            byte[] content = new byte[len - FIXED];
+            buffer.get(pos + HEADER + FIXED, content);
+            return new Message(buffer.getInt(pos + HEADER + 16), content, buffer.getLong(pos + HEADER), chatId,
+                    buffer.getLong(pos + HEADER + 20), buffer.getLong(pos + HEADER + 8));
+        }
+
+        private void track(long id) {
+            if (id <= maxId) sorted = false;
+            else maxId = id;
+        }
+
+        // rilascia subito la mappatura invece di aspettare il GC; dopo non si può più leggere
+        void unmap() {
+            Unmapper.unmap(buffer);
+        }
+
+        private void addOffset(int pos) {
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = pos;
+        }
+    }
+
+    // MappedByteBuffer non ha un metodo pubblico per smappare: si usa Unsafe.invokeCleaner
+    // (modulo jdk.unsupported). Se non è disponibile la mappatura resta fino al GC
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = f.get(null);
+                invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.out.println("Log dei messaggi: impossibile smappare i segmenti (" + e + ")");
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Metriche del server, in un registro unico. Contatori e istogrammi usano LongAdder: un thread
+// che registra non blocca gli altri e non alloca. Gli istogrammi hanno bucket logaritmici alla HDR
+// (8 sotto-bucket per ogni potenza di due, errore massimo 12.5%) e coprono qualsiasi valore senza
+// configurazione; i percentili si calcolano solo quando qualcuno legge. I gauge sono funzioni
+// chiamate al momento della lettura.
+//
+// Sul percorso caldo si tiene il riferimento alla metrica in un campo statico; le serie con
+// etichetta (comandi, query) si registrano all'avvio in una mappa del chiamante, senza comporre
+// il nome a ogni uso.
+//
+// Lettura in formato testo Prometheus: MetricsEndpoint (HTTP locale) e il comando /stats.
+public final class Metrics {
+    private static final Map<String, Metric> registry = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String labels; // es. cmd="/list", vuoto se senza etichette
+
+        Metric(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        abstract String type();
+
+        abstract void render(StringBuilder out);
+
+        String series(String suffix, String extra) {
+            String l = labels.isEmpty() ? extra : extra.isEmpty() ? labels : labels + "," + extra;
+            return name + suffix + (l.isEmpty() ? "" : "{" + l + "}");
+        }
+    }
+
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String labels) {
+            super(name, labels);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void render(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(get()).append('\n');
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        private Gauge(String name, DoubleSupplier value) {
+            super(name, "");
+            this.value = value;
+        }
+
+        String type() {
+            return "gauge";
+        }
+
+        void render(StringBuilder out) {
+            double v;
+            try {
+                v = value.getAsDouble();
+            } catch (RuntimeException e) {
+                return; // servizio non ancora pronto o già fermo
+            }
+            out.append(name).append(' ');
+            if (v == Math.rint(v) && !Double.isInfinite(v)) out.append((long) v);
+            else out.append(v);
+            out.append('\n');
+        }
+    }
+
+    public static final class Histogram extends Metric {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1}; // 1 = massimo
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(String name, String labels) {
+            super(name, labels);
+            for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts[bucket(value)].increment();
+            sum.add(value);
+        }
+
+        // tempo trascorso da start (System.nanoTime())
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        // valore più alto che finisce nel bucket i
+        static long upperBound(int i) {
+            if (i < SUB) return i;
+            int shift = i / SUB - 1;
+            long lower = (long) (SUB + i % SUB) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        String type() {
+            return "summary";
+        }
+
+        void render(StringBuilder out) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total > 0) {
+                for (double q : QUANTILES) {
+                    out.append(series("", "quantile=\"" + q + "\"")).append(' ').append(quantile(snapshot, total, q)).append('\n');
+                }
+            }
+            out.append(series("_sum", "")).append(' ').append(sum.sum()).append('\n');
+            out.append(series("_count", "")).append(' ').append(total).append('\n');
+        }
+
+        private static long quantile(long[] snapshot, long total, double q) {
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && snapshot[i] > 0) return upperBound(i);
+            }
+            return 0;
+        }
+    }
+
+    // --------------------
+    // REGISTRO
+    // --------------------
+    public static Counter counter(String name) {
+        return counter(name, "");
+    }
+
+    public static Counter counter(String name, String label, String value) {
+        return counter(name, label + "=\"" + value + "\"");
+    }
+
+    private static Counter counter(String name, String labels) {
+        return (Counter) registry.computeIfAbsent(key(name, labels), k -> new Counter(name, labels));
+    }
+
+    public static Histogram histogram(String name) {
+        return histogram(name, "");
+    }
+
+    public static Histogram histogram(String name, String label, String value) {
+        return histogram(name, label + "=\"" + value + "\"");
+    }
+
+    private static Histogram histogram(String name, String labels) {
+        return (Histogram) registry.computeIfAbsent(key(name, labels), k -> new Histogram(name, labels));
+    }
+
+    // un gauge già registrato con lo stesso nome viene sostituito (es. al riavvio di un servizio)
+    public static void gauge(String name, DoubleSupplier value) {
+        registry.put(name, new Gauge(name, value));
+    }
+
+    private static String key(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    // --------------------
+    // LETTURA
+    // --------------------
+    // tutte le metriche in formato testo Prometheus, ordinate per nome
+    public static String render() {
+        List<Metric> all = new ArrayList<>(registry.values());
+        all.sort((a, b) -> a.name.equals(b.name) ? a.labels.compareTo(b.labels) : a.name.compareTo(b.name));
+        StringBuilder out = new StringBuilder(64 * all.size());
+        String last = null;
+        for (Metric m : all) {
+            if (!m.name.equals(last)) {
+                out.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+                last = m.name;
+            }
+            m.render(out);
+        }
+        return out.toString();
+    }
+}
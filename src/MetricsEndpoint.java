@@ -0,0 +1,56 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Endpoint HTTP locale per leggere le metriche (formato testo Prometheus):
+//   curl http://127.0.0.1:14345/metrics
+// Ascolta solo su chat.metrics.host (default 127.0.0.1), porta chat.metrics.port
+// (default porta dei client + 2000); chat.metrics.port=-1 lo disattiva.
+public class MetricsEndpoint {
+    private final InetSocketAddress address;
+    private HttpServer http;
+
+    public MetricsEndpoint(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    // null se disattivato
+    public static MetricsEndpoint fromSystemProperties(int clientPort) {
+        int port = Integer.getInteger("chat.metrics.port", clientPort + 2000);
+        if (port < 0) return null;
+        try {
+            return new MetricsEndpoint(new InetSocketAddress(InetAddress.getByName(System.getProperty("chat.metrics.host", "127.0.0.1")), port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void start() throws IOException {
+        http = HttpServer.create(address, 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+        System.out.println("Metriche su http://" + address.getHostString() + ":" + http.getAddress().getPort() + "/metrics");
+    }
+
+    public void shutdown() {
+        if (http != null) http.stop(0);
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Event loop java.nio: un solo thread gestisce accept, letture e scritture di tutte le
+// connessioni e divide l'input in righe o frame con ProtocolDecoder. Righe e frame vengono elaborati dal
+// ClientHandler fuori dal loop (i comandi possono interrogare il DB), una connessione alla volta
+// e nell'ordine di arrivo.
+//
+// Se un client invia più in fretta di quanto il suo ClientHandler elabori, oltre chat.nio.maxInbox
+// elementi in attesa il loop smette di leggere dalla connessione (niente OP_READ): i dati restano
+// nel buffer del socket e TCP rallenta il client. La coda supera la soglia al massimo di quanto
+// arriva in una lettura (READ_BUFFER_SIZE byte); la lettura riprende quando drain() è sceso a metà.
+public class NioEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // oltre questa soglia di byte non ancora scritti, chi scrive sulla connessione aspetta
+    private static final long MAX_PENDING_BYTES = Long.getLong("chat.nio.maxPendingBytes", 256 * 1024L);
+    // righe e frame ricevuti ma non ancora elaborati, per connessione
+    private static final int MAX_INBOX = Integer.getInteger("chat.nio.maxInbox", 1000);
+
+    private Selector selector;
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingReads = new ConcurrentLinkedQueue<>(); // letture da riattivare
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Override
+    public void start(int port, ChatManager chatManager, UserManager userManager) throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server avviato sulla porta " + port + " (nio)");
+
+            while (true) {
+                selector.select();
+
+                NioConnection c;
+                while ((c = pendingWrites.poll()) != null) {
+                    c.enableWrite();
+                }
+                while ((c = pendingReads.poll()) != null) {
+                    c.enableRead();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, chatManager, userManager);
+                        continue;
+                    }
+
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.read();
+                        if (key.isValid() && key.isWritable()) conn.write();
+                    } catch (IOException | RuntimeException e) {
+                        // un client che manda dati non validi chiude solo la propria connessione
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, ChatManager chatManager, UserManager userManager) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        System.out.println("Nuovo client connesso: " + channel.socket().getInetAddress());
+
+        channel.configureBlocking(false);
+        NioConnection conn = new NioConnection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        String address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        conn.handler = new ClientHandler(conn.new ChannelOutputStream(), conn, address, chatManager, userManager);
+        conn.handler.onConnect();
+    }
+
+    private class NioConnection implements Closeable, ProtocolDecoder.Listener {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ClientHandler handler;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ProtocolDecoder decoder = new ProtocolDecoder();
+        private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        private final AtomicBoolean readPaused = new AtomicBoolean(false);
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private final Condition drained = drainLock.newCondition();
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // chiamato dall'event loop
+        void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            decoder.feed(readBuffer, this);
+            readBuffer.clear();
+            if (inboxSize.get() >= MAX_INBOX) pauseRead();
+            schedule();
+        }
+
+        // chiamato dall'event loop. readPaused va impostato prima di ricontrollare la coda: se drain()
+        // l'ha già svuotata senza vedere la pausa, la lettura si riattiva qui
+        private void pauseRead() {
+            readPaused.set(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (inboxSize.get() <= MAX_INBOX / 2 && readPaused.compareAndSet(true, false)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // chiamato dall'event loop
+        void enableRead() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        // chiamato dall'event loop
+        void write() throws IOException {
+            ByteBuffer b;
+            try {
+                while ((b = outbound.peek()) != null) {
+                    int before = b.remaining();
+                    channel.write(b);
+                    pendingBytes.addAndGet(b.remaining() - before);
+                    if (b.hasRemaining()) return; // socket pieno, riprova al prossimo OP_WRITE
+                    outbound.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } finally {
+                signalDrained();
+            }
+        }
+
+        private void signalDrained() {
+            drainLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        // backpressure: il thread che scrive aspetta finché l'event loop non ha svuotato il buffer
+        private void awaitDrained() {
+            drainLock.lock();
+            try {
+                while (pendingBytes.get() > MAX_PENDING_BYTES && !closed.get()) {
+                    drained.awaitUninterruptibly();
+                }
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        void enableWrite() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void onBinary() {
+            enqueue(handler::onBinary);
+        }
+
+        @Override
+        public void onLine(String line) {
+            enqueue(() -> handler.handleLine(line));
+        }
+
+        @Override
+        public void onChatMessage(int chatId, byte[] content) {
+            enqueue(() -> handler.onChatMessage(chatId, content));
+        }
+
+        private void enqueue(Runnable task) {
+            inbox.add(task);
+            inboxSize.incrementAndGet();
+        }
+
+        private void schedule() {
+            if (!inbox.isEmpty() && draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        // elabora l'input in coda un elemento alla volta, mai in parallelo per la stessa connessione
+        private void drain() {
+            try {
+                Runnable task;
+                while ((task = inbox.poll()) != null) {
+                    task.run();
+                    if (inboxSize.decrementAndGet() <= MAX_INBOX / 2 && readPaused.compareAndSet(true, false)) {
+                        pendingReads.add(this);
+                        selector.wakeup();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                close();
+            } finally {
+                draining.set(false);
+            }
+            if (!closed.get()) schedule();
+        }
+
+        // chiude la connessione una sola volta e avvisa il ClientHandler
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                key.cancel();
+                try { channel.close(); } catch (IOException ignored) {}
+                signalDrained();
+                workers.execute(handler::onDisconnect);
+            }
+        }
+
+        // stream usato dalla OutboundQueue del ClientHandler: accumula i byte e al flush
+        // li accoda per l'event loop
+        private class ChannelOutputStream extends OutputStream {
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b) {
+                buffer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                buffer.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                if (buffer.size() == 0 || closed.get()) return;
+                byte[] bytes = buffer.toByteArray();
+                buffer.reset();
+                outbound.add(ByteBuffer.wrap(bytes));
+                pendingBytes.addAndGet(bytes.length);
+                pendingWrites.add(NioConnection.this);
+                selector.wakeup();
+                awaitDrained();
+            }
+
+            @Override
+            public void close() {
+                NioConnection.this.close();
+            }
+        }
+    }
+}
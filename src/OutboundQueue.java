@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Coda limitata dei messaggi in uscita verso un client, svuotata da un thread dedicato.
+// Chi fa broadcast si limita ad accodare: un client lento non blocca il mittente
+// né gli altri destinatari. Il writer scrive tutte le righe in attesa e fa un solo flush
+// (una sola write sul socket); con lingerMs > 0 aspetta fino a quel tempo per accumularne altre.
+// offerMessage gira sul worker della chat e non aspetta mai: con BLOCK l'attesa la fa il thread
+// del mittente in awaitSpace() prima di passare il messaggio al worker. Tra l'attesa e l'accodamento
+// altri mittenti possono riempire la coda: con BLOCK si tollera fino a 2 × capacity, oltre si disconnette.
+// Dopo ogni flush riuscito il writer passa a onWritten l'ultimo id scritto per ogni chat.
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST, // scarta il messaggio più vecchio in coda
+        DISCONNECT,  // chiude la connessione del client lento
+        BLOCK        // il mittente aspetta spazio per al massimo blockTimeoutMs, poi disconnette
+    }
+
+    private Wire wire; // usato solo dal thread writer
+    private final Runnable disconnect;
+    private final Consumer<Map<Integer, Long>> onWritten; // id chat → ultimo id messaggio scritto; può essere null
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+    private final long lingerNanos;
+
+    // elementi in coda in tutte le connessioni, per il controllo di ammissione
+    private static final LongAdder TOTAL_DEPTH = new LongAdder();
+    private static final Metrics.Counter MESSAGES_OUT = Metrics.counter("chat_messages_out_total");
+    private static final Metrics.Counter DROPPED = Metrics.counter("chat_outbound_dropped_total");
+    // dall'accodamento del primo elemento di un blocco alla sua scrittura, per tutti i client
+    private static final Metrics.Histogram LAG = Metrics.histogram("chat_outbound_lag_ns");
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    public OutboundQueue(Wire wire, Runnable disconnect, Consumer<Map<Integer, Long>> onWritten, int capacity,
+                         OverflowPolicy policy, long blockTimeoutMs, long lingerMs) {
+        this.wire = wire;
+        this.disconnect = disconnect;
+        this.onWritten = onWritten;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+    }
+
+    // avvia il thread writer; fromSystemProperties restituisce la coda già avviata
+    public void start() {
+        Thread.ofVirtual().name("outbound-writer").start(this::writeLoop);
+    }
+
+    public static OutboundQueue fromSystemProperties(Wire wire, Runnable disconnect, Consumer<Map<Integer, Long>> onWritten) {
+        OutboundQueue q = new OutboundQueue(
+                wire,
+                disconnect,
+                onWritten,
+                Integer.getInteger("chat.out.capacity", 1000),
+                OverflowPolicy.valueOf(System.getProperty("chat.out.overflow", "DROP_OLDEST").toUpperCase()),
+                Long.getLong("chat.out.blockTimeoutMs", 1000L),
+                Long.getLong("chat.out.lingerMs", 0L)
+        );
+        q.start();
+        return q;
+    }
+
+    // accoda un messaggio di chat per il client; non aspetta la scrittura sul socket né lo spazio in coda
+    public void offerMessage(int chatId, int senderId, long messageId, long seq, byte[] content) {
+        boolean overflow = false;
+        lock.lock();
+        try {
+            if (closed) return;
+
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        // solo risposte ai comandi in coda: niente da scartare, il client è bloccato
+                        if (dropOldestMessage()) {
+                            DROPPED.increment();
+                        } else {
+                            overflow = true;
+                        }
+                    }
+                    case DISCONNECT -> overflow = true;
+                    case BLOCK -> overflow = queue.size() >= 2 * capacity;
+                }
+            }
+
+            if (overflow) {
+                DROPPED.increment();
+                closeLocked();
+            } else if (!closed) {
+                queue.addLast(Entry.message(chatId, senderId, messageId, seq, content));
+                TOTAL_DEPTH.increment();
+                MESSAGES_OUT.increment();
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) disconnect.run();
+    }
+
+    // accoda la risposta a un comando del client stesso (righe già terminate): non viene scartata.
+    // Cresce solo se il client continua a inviare comandi senza leggere le risposte: oltre
+    // 2 × capacity elementi in coda il client viene disconnesso
+    public void offerResponse(String block) {
+        offerControl(Entry.text(block), true);
+    }
+
+    // avviso del server non richiesto dal client (presenza, recupero): come un messaggio può essere
+    // scartato, e con la coda piena si scarta lui invece di un messaggio
+    public void offerNotice(String block) {
+        lock.lock();
+        try {
+            if (closed) return;
+            if (queue.size() >= capacity) {
+                DROPPED.increment();
+                return;
+            }
+            Entry e = Entry.text(block);
+            e.droppable = true;
+            queue.addLast(e);
+            TOTAL_DEPTH.increment();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // da questo punto in poi il writer usa il nuovo formato (es. dopo la negoziazione binaria)
+    public void switchWire(Wire newWire) {
+        offerControl(Entry.wire(newWire), false);
+    }
+
+    private void offerControl(Entry e, boolean bounded) {
+        boolean overflow = false;
+        lock.lock();
+        try {
+            if (closed) return;
+            if (bounded && queue.size() >= 2 * capacity) {
+                closeLocked();
+                overflow = true;
+            } else {
+                queue.addLast(e);
+                TOTAL_DEPTH.increment();
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) disconnect.run();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    // attende che in coda ci sia posto per n elementi, senza limite di tempo: per il recupero al login,
+    // che scorre molti messaggi e non deve farli scartare. false se la connessione si chiude prima
+    public boolean awaitRoom(int n) throws InterruptedException {
+        int needed = Math.min(n, capacity);
+        lock.lock();
+        try {
+            while (queue.size() + needed > capacity && !closed) {
+                notFull.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // solo con BLOCK, dal thread del mittente (mai dal worker della chat): aspetta che la coda abbia
+    // spazio fino a deadline (System.nanoTime()); se è ancora piena il client lento viene disconnesso
+    public void awaitSpace(long deadline) throws InterruptedException {
+        if (policy != OverflowPolicy.BLOCK) return;
+        boolean overflow = false;
+        lock.lock();
+        try {
+            while (queue.size() >= capacity && !closed) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    DROPPED.increment();
+                    closeLocked();
+                    overflow = true;
+                    break;
+                }
+                notFull.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) disconnect.run();
+    }
+
+    public long getBlockTimeoutMs() {
+        return blockTimeoutMs;
+    }
+
+    // scarta il messaggio più vecchio, lasciando in coda le risposte ai comandi;
+    // false se in coda non c'è nessun messaggio da scartare
+    private boolean dropOldestMessage() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().droppable) {
+                it.remove();
+                TOTAL_DEPTH.decrement();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) return;
+                drainTo(batch);
+
+                // attesa alla Nagle: raccoglie altre righe per al massimo lingerNanos
+                long remaining = lingerNanos;
+                while (remaining > 0 && !closed) {
+                    remaining = notEmpty.awaitNanos(remaining);
+                    drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                for (Entry e : batch) {
+                    write(e);
+                }
+                wire.flush();
+            } catch (IOException ex) {
+                close();
+                disconnect.run();
+                return;
+            }
+            if (onWritten != null) notifyWritten(batch);
+
+            LAG.recordSince(batch.get(0).enqueuedAt);
+            batch.clear();
+        }
+    }
+
+    // solo i messaggi di chat, con l'id più alto per ogni chat del blocco appena scritto
+    private void notifyWritten(List<Entry> batch) {
+        Map<Integer, Long> lastIds = null;
+        for (Entry e : batch) {
+            if (e.content == null) continue;
+            if (lastIds == null) lastIds = new HashMap<>();
+            lastIds.merge(e.chatId, e.messageId, Math::max);
+        }
+        if (lastIds != null) onWritten.accept(lastIds);
+    }
+
+    private void write(Entry e) throws IOException {
+        if (e.wire != null) {
+            wire.flush();
+            wire = e.wire;
+        } else if (e.text != null) {
+            wire.writeText(e.text);
+        } else {
+            wire.writeMessage(e.chatId, e.senderId, e.messageId, e.seq, e.content);
+        }
+    }
+
+    // da chiamare con il lock
+    private void drainTo(List<Entry> batch) {
+        Entry e;
+        int n = 0;
+        while ((e = queue.pollFirst()) != null) {
+            batch.add(e);
+            n++;
+        }
+        if (n > 0) TOTAL_DEPTH.add(-n);
+        notFull.signalAll();
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeLocked() {
+        closed = true;
+        TOTAL_DEPTH.add(-queue.size());
+        queue.clear();
+        notEmpty.signalAll();
+        notFull.signalAll();
+    }
+
+    // --------------------
+    // METRICHE
+    // --------------------
+    public static long getTotalDepth() {
+        return TOTAL_DEPTH.sum();
+    }
+
+    // elementi in coda per questo client
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry {
+        private final long enqueuedAt = System.nanoTime();
+        private boolean droppable;
+        private String text;
+        private Wire wire;
+        private int chatId;
+        private int senderId;
+        private long messageId;
+        private long seq;
+        private byte[] content;
+
+        static Entry message(int chatId, int senderId, long messageId, long seq, byte[] content) {
+            Entry e = new Entry();
+            e.droppable = true;
+            e.chatId = chatId;
+            e.senderId = senderId;
+            e.messageId = messageId;
+            e.seq = seq;
+            e.content = content;
+            return e;
+        }
+
+        static Entry text(String text) {
+            Entry e = new Entry();
+            e.text = text;
+            return e;
+        }
+
+        static Entry wire(Wire wire) {
+            Entry e = new Entry();
+            e.wire = wire;
+            return e;
+        }
+    }
+}
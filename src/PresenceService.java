@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Presenza degli utenti. L'indice degli utenti connessi è diviso in shard per id: durante un'ondata
+// di connessioni le scritture si distribuiscono su tabelle piccole che crescono indipendentemente.
+// I cambi di stato si accumulano per chat.presence.windowMs (default 200) e partono in blocco solo
+// verso chi condivide una chat con l'utente: chi entra ed esce nella stessa finestra non genera
+// notifiche e ogni destinatario riceve al massimo una riga per finestra.
+public class PresenceService {
+    private record Change(User user, boolean online) {
+    }
+
+    // nomi da notificare a un destinatario in questa finestra
+    private static class Batch {
+        final Set<String> online = new LinkedHashSet<>();
+        final Set<String> offline = new LinkedHashSet<>();
+    }
+
+    private final ChatManager chatManager;
+    private final UserManager userManager;
+    private final long windowMs;
+    private final int maxNames; // nomi per riga di notifica
+    private final List<Set<Integer>> shards; // utenti connessi a questa istanza
+    private final int mask;
+
+    private final Map<Integer, Change> pending = new ConcurrentHashMap<>(); // ultimo cambio per utente nella finestra
+    private final Set<Integer> announced = ConcurrentHashMap.newKeySet(); // utenti già notificati come online
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    public PresenceService(ChatManager chatManager, UserManager userManager, int shardCount, long windowMs, int maxNames) {
+        this.chatManager = chatManager;
+        this.userManager = userManager;
+        this.windowMs = windowMs;
+        this.maxNames = maxNames;
+        int n = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1; // potenza di due
+        shards = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) shards.add(ConcurrentHashMap.newKeySet());
+        mask = n - 1;
+    }
+
+    public static PresenceService fromSystemProperties(ChatManager chatManager, UserManager userManager) {
+        return new PresenceService(chatManager, userManager,
+                Integer.getInteger("chat.presence.shards", 64),
+                Long.getLong("chat.presence.windowMs", 200L),
+                Integer.getInteger("chat.presence.maxNames", 20));
+    }
+
+    public void start() {
+        flusher = new Thread(this::flushLoop, "presence");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (flusher != null) flusher.interrupt();
+    }
+
+    // --------------------
+    // INDICE
+    // --------------------
+    public void connected(User u) {
+        shard(u.getID()).add(u.getID());
+        pending.put(u.getID(), new Change(u, true));
+    }
+
+    public void disconnected(User u) {
+        shard(u.getID()).remove(u.getID());
+        pending.put(u.getID(), new Change(u, false));
+    }
+
+    // cambio di stato di un utente connesso a un altro nodo del cluster
+    public void remoteChanged(User u, boolean online) {
+        pending.put(u.getID(), new Change(u, online));
+    }
+
+    // connesso qui o, se c'è un cluster, su un altro nodo
+    public boolean isOnline(int userId) {
+        if (shard(userId).contains(userId)) return true;
+        Cluster c = userManager.getCluster();
+        return c != null && c.getNodeOf(userId) != null;
+    }
+
+    public int getOnlineCount() {
+        int n = 0;
+        for (Set<Integer> s : shards) n += s.size();
+        return n;
+    }
+
+    private Set<Integer> shard(int userId) {
+        return shards.get((userId * 0x9E3779B9) >>> 16 & mask);
+    }
+
+    // --------------------
+    // NOTIFICHE
+    // --------------------
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(windowMs);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Errore nell'invio delle notifiche di presenza");
+            }
+        }
+    }
+
+    // invia i cambi accumulati; restituisce il numero di righe inviate
+    public int flush() {
+        if (pending.isEmpty()) return 0;
+
+        // destinatario → nomi di chi è entrato / uscito
+        Map<Integer, Batch> batches = new HashMap<>();
+        for (Integer id : pending.keySet()) {
+            Change change = pending.remove(id);
+            if (change == null) continue;
+            // stato finale uguale all'ultimo notificato: niente da dire
+            boolean changed = change.online() ? announced.add(id) : announced.remove(id);
+            if (!changed) continue;
+
+            String name = change.user().getUsername();
+            for (Chat chat : chatManager.getChatsForUser(change.user())) {
+                for (User p : chat.getParticipants()) {
+                    if (p.getID() == id || !shard(p.getID()).contains(p.getID())) continue;
+                    Batch b = batches.computeIfAbsent(p.getID(), k -> new Batch());
+                    (change.online() ? b.online : b.offline).add(name);
+                }
+            }
+        }
+
+        int sent = 0;
+        for (Map.Entry<Integer, Batch> e : batches.entrySet()) {
+            ClientHandler ch = userManager.getClientHandler(e.getKey());
+            if (ch == null) continue;
+            Batch b = e.getValue();
+            StringBuilder line = new StringBuilder("Presenza:");
+            if (!b.online.isEmpty()) names(line.append(" online "), b.online);
+            if (!b.offline.isEmpty()) {
+                if (!b.online.isEmpty()) line.append(';');
+                names(line.append(" offline "), b.offline);
+            }
+            ch.sendNotice(line.toString());
+            sent++;
+        }
+        return sent;
+    }
+
+    // in un'ondata di connessioni la riga resta corta: i primi nomi e quanti altri
+    private void names(StringBuilder line, Set<String> names) {
+        int i = 0;
+        for (String name : names) {
+            if (i == maxNames) {
+                line.append(" e altri ").append(names.size() - maxNames);
+                return;
+            }
+            if (i++ > 0) line.append(", ");
+            line.append(name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Sceglie il protocollo dal primo byte ricevuto: BinaryProtocol.MAGIC attiva i frame binari,
+// qualsiasi altro byte mantiene il protocollo testuale a righe.
+public class ProtocolDecoder {
+
+    public interface Listener {
+        // il client ha chiesto il protocollo binario
+        void onBinary();
+
+        // una riga di testo (o un frame TEXT)
+        void onLine(String line);
+
+        // un messaggio per una chat (frame SEND), contenuto in UTF-8 così come è arrivato
+        void onChatMessage(int chatId, byte[] content);
+    }
+
+    private LineFramer lines;
+    private FrameDecoder frames;
+
+    public void feed(ByteBuffer buffer, Listener listener) throws IOException {
+        if (lines == null && frames == null) {
+            if (!buffer.hasRemaining()) return;
+            if ((buffer.get(buffer.position()) & 0xFF) == BinaryProtocol.MAGIC) {
+                buffer.get();
+                frames = new FrameDecoder();
+                listener.onBinary();
+            } else {
+                lines = new LineFramer();
+            }
+        }
+
+        if (frames != null) {
+            frames.feed(buffer, listener);
+        } else {
+            lines.feed(buffer, listener::onLine);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Indice full-text in memoria per /search: termine → messaggi che lo contengono.
+// Un solo dizionario per tutte le chat (un indice per chat costerebbe una voce di mappa per ogni
+// coppia chat/termine); ogni voce della lista (postings) è [id chat][differenza dall'id precedente],
+// in varint, di solito 3-5 byte; la lista di un termine frequente si divide per chat. La ricerca
+// parte dal termine più raro, tiene solo le chat dell'utente e interseca gli id.
+//
+// All'avvio la cronologia nel DB si indicizza in parallelo (fork/join sulle chat); i messaggi
+// nuovi li aggiunge ChatManager man mano.
+public class SearchIndex {
+    private static final int MIN_TERM_LENGTH = 2;
+
+    // pagina di messaggi di una chat con id > afterId, in ordine crescente
+    public interface Source {
+        List<Message> page(int chatId, long afterId, int limit) throws SQLException;
+    }
+
+    // voci [id chat, id messaggio] nell'ordine di arrivo; l'id è salvato come differenza
+    // (zigzag: i messaggi di chat diverse possono arrivare fuori ordine)
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private long last;
+        private int count;
+
+        void add(int chatId, long id) {
+            if (size + 15 > data.length) data = Arrays.copyOf(data, Math.max(data.length + (data.length >> 1), size + 15));
+            while ((chatId & ~0x7F) != 0) {
+                data[size++] = (byte) ((chatId & 0x7F) | 0x80);
+                chatId >>>= 7;
+            }
+            data[size++] = (byte) chatId;
+            long delta = id - last;
+            long zz = (delta << 1) ^ (delta >> 63);
+            while ((zz & ~0x7FL) != 0) {
+                data[size++] = (byte) ((zz & 0x7F) | 0x80);
+                zz >>>= 7;
+            }
+            data[size++] = (byte) zz;
+            last = id;
+            count++;
+        }
+
+        // passa a visitor ogni voce; con scope != null solo quelle delle chat in scope
+        void forEach(BitSet scope, Visitor visitor) {
+            long id = 0;
+            int i = 0;
+            while (i < size) {
+                int chatId = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[i++];
+                    chatId |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                long zz = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[i++];
+                    zz |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                id += (zz >>> 1) ^ -(zz & 1);
+                if (scope == null || scope.get(chatId)) visitor.visit(chatId, id);
+            }
+        }
+    }
+
+    private interface Visitor {
+        void visit(int chatId, long id);
+    }
+
+    // un termine: una sola lista finché è corta, poi divisa in BUCKETS liste per id chat,
+    // così la ricerca in una chat legge solo la lista del suo bucket
+    private static final class Term {
+        private static final int SPLIT = 4096;
+        private static final int BUCKETS = 64;
+
+        private Postings single = new Postings();
+        private Postings[] buckets;
+        private int count;
+
+        synchronized void add(int chatId, long id) {
+            append(chatId, id);
+        }
+
+        // aggiunge in blocco le voci di una lista locale (costruzione all'avvio)
+        synchronized void addAll(Postings local) {
+            local.forEach(null, this::append);
+        }
+
+        private void append(int chatId, long id) {
+            count++;
+            if (buckets == null) {
+                single.add(chatId, id);
+                if (single.count < SPLIT) return;
+                buckets = new Postings[BUCKETS];
+                Postings old = single;
+                single = null;
+                old.forEach(null, this::toBucket);
+                return;
+            }
+            toBucket(chatId, id);
+        }
+
+        private void toBucket(int chatId, long id) {
+            int b = chatId & (BUCKETS - 1);
+            if (buckets[b] == null) buckets[b] = new Postings();
+            buckets[b].add(chatId, id);
+        }
+
+        // id dei messaggi delle chat in scope, ordinati e senza doppioni; chatOf (se non null)
+        // riceve la chat di ogni id
+        synchronized long[] collect(BitSet scope, boolean[] scopeBuckets, Map<Long, Integer> chatOf) {
+            long[][] out = {new long[16]};
+            int[] n = {0};
+            Visitor visitor = (chatId, id) -> {
+                if (n[0] == out[0].length) out[0] = Arrays.copyOf(out[0], n[0] * 2);
+                out[0][n[0]++] = id;
+                if (chatOf != null) chatOf.put(id, chatId);
+            };
+            if (buckets == null) {
+                single.forEach(scope, visitor);
+            } else {
+                for (int b = 0; b < BUCKETS; b++) {
+                    if (scopeBuckets[b] && buckets[b] != null) buckets[b].forEach(scope, visitor);
+                }
+            }
+            long[] ids = out[0];
+            Arrays.sort(ids, 0, n[0]);
+            int u = 0;
+            for (int k = 0; k < n[0]; k++) if (u == 0 || ids[k] != ids[u - 1]) ids[u++] = ids[k];
+            return Arrays.copyOf(ids, u);
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized long memoryBytes() {
+            if (buckets == null) return single.data.length + 16 + 40 + 32;
+            long bytes = 16 + 8 * BUCKETS + 32;
+            for (Postings p : buckets) if (p != null) bytes += p.data.length + 16 + 40;
+            return bytes;
+        }
+    }
+
+    private final Map<String, Term> terms = new ConcurrentHashMap<>();
+
+    // null se disabilitato con -Dchat.search.enabled=false
+    public static SearchIndex fromSystemProperties() {
+        return Boolean.parseBoolean(System.getProperty("chat.search.enabled", "true")) ? new SearchIndex() : null;
+    }
+
+    // --------------------
+    // INDICIZZAZIONE
+    // --------------------
+    // chiamato da ChatManager sul worker della chat per ogni nuovo messaggio
+    public void add(Message m) {
+        for (String w : terms(m.getContent())) {
+            terms.computeIfAbsent(w, k -> new Term()).add(m.getChatID(), m.getID());
+        }
+    }
+
+    // indicizza la cronologia di tutte le chat in parallelo, fino al messaggio maxId compreso.
+    // Ogni compito riempie un dizionario locale e poi lo unisce: un lock per termine, non per voce
+    public void build(Source source, Collection<Chat> chatList, long maxId, int threads) {
+        Chat[] all = chatList.toArray(new Chat[0]);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new BuildTask(terms, source, all, 0, all.length, maxId));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // statica: riceve il dizionario da riempire invece di tenere un riferimento all'indice.
+    // RecursiveAction è Serializable ma i compiti non vengono mai serializzati: campi transient
+    private static final class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int LEAF = 64; // chat per compito
+        private final transient Map<String, Term> terms;
+        private final transient Source source;
+        private final transient Chat[] all;
+        private final int from, to;
+        private final long maxId;
+
+        BuildTask(Map<String, Term> terms, Source source, Chat[] all, int from, int to, long maxId) {
+            this.terms = terms;
+            this.source = source;
+            this.all = all;
+            this.from = from;
+            this.to = to;
+            this.maxId = maxId;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BuildTask(terms, source, all, from, mid, maxId), new BuildTask(terms, source, all, mid, to, maxId));
+                return;
+            }
+            Map<String, Postings> local = new HashMap<>();
+            for (int i = from; i < to; i++) {
+                int chatId = all[i].getID();
+                try {
+                    scan(chatId, local);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    System.out.println("Errore nell'indicizzazione della chat " + chatId);
+                }
+            }
+            for (Map.Entry<String, Postings> e : local.entrySet()) {
+                terms.computeIfAbsent(e.getKey(), k -> new Term()).addAll(e.getValue());
+            }
+        }
+
+        private void scan(int chatId, Map<String, Postings> local) throws SQLException {
+            long after = 0;
+            while (true) {
+                List<Message> page = source.page(chatId, after, 1000);
+                for (Message m : page) {
+                    if (m.getID() > maxId) return;
+                    for (String w : terms(m.getContent())) local.computeIfAbsent(w, k -> new Postings()).add(chatId, m.getID());
+                    after = m.getID();
+                }
+                if (page.size() < 1000) return;
+            }
+        }
+    }
+
+    // --------------------
+    // RICERCA
+    // --------------------
+    // coppie [id chat, id messaggio] dei messaggi delle chat in scope che contengono tutte le parole,
+    // dall'id più alto. L'id approssima la recenza: ogni nodo prende gli id a blocchi
+    // (chat.ids.blockSize), quindi con più nodi un messaggio più nuovo può avere un id più basso di
+    // uno più vecchio e restare fuori dai primi limit. Chi mostra i risultati li riordina per timestamp
+    public List<long[]> search(Collection<Chat> scope, String query, int limit) {
+        List<long[]> hits = new ArrayList<>();
+        List<Term> lists = new ArrayList<>();
+        for (String w : terms(query)) {
+            Term t = terms.get(w);
+            if (t == null) return hits;
+            lists.add(t);
+        }
+        if (lists.isEmpty() || scope.isEmpty()) return hits;
+        lists.sort((a, b) -> Integer.compare(a.count(), b.count())); // il più raro per primo
+
+        BitSet chatIds = new BitSet();
+        boolean[] scopeBuckets = new boolean[Term.BUCKETS];
+        for (Chat c : scope) {
+            chatIds.set(c.getID());
+            scopeBuckets[c.getID() & (Term.BUCKETS - 1)] = true;
+        }
+        Map<Long, Integer> chatOf = new HashMap<>();
+        long[] ids = lists.get(0).collect(chatIds, scopeBuckets, chatOf);
+        for (int i = 1; i < lists.size() && ids.length > 0; i++) {
+            ids = intersect(ids, lists.get(i).collect(chatIds, scopeBuckets, null));
+        }
+        for (int i = ids.length - 1; i >= Math.max(0, ids.length - limit); i--) {
+            hits.add(new long[]{chatOf.get(ids[i]), ids[i]});
+        }
+        return hits;
+    }
+
+    public int getTermCount() {
+        return terms.size();
+    }
+
+    // stima: byte delle liste più il costo di voce della mappa, stringa e oggetto Postings
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Map.Entry<String, Term> e : terms.entrySet()) {
+            bytes += e.getValue().memoryBytes() + 32 + 40 + e.getKey().length();
+        }
+        return bytes;
+    }
+
+    // parole in minuscolo, solo lettere e cifre, senza ripetizioni
+    static List<String> terms(String text) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH) words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(words);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
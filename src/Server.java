@@ -1,36 +1,143 @@
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
-    private static final int PORT = 12345; // scegli una porta libera
+    private static final int PORT = Integer.getInteger("chat.port", 12345); // scegli una porta libera
+    private static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("chat.snapshot.intervalSec", 300L);
     private ChatManager chatManager;
     private UserManager userManager;
+    private ConnectionEngine engine;
 
-    public Server() {
-        chatManager = new ChatManager();
-        userManager = new UserManager();
+    public Server(ConnectionEngine engine) {
+        this.engine = engine;
+
+        // snapshot (se c'è) + delta dal DB; chat e utenti si caricano in parallelo
+        long start = System.nanoTime();
+        Snapshot snapshot = Snapshot.load(Snapshot.PATH);
+        CompletableFuture<ChatManager> chats = CompletableFuture.supplyAsync(() -> new ChatManager(new DBManager(), snapshot));
+        CompletableFuture<UserManager> users = CompletableFuture.supplyAsync(() -> new UserManager(new DBManager(), snapshot));
+        chatManager = chats.join();
+        userManager = users.join();
+        System.out.println("Stato caricato in " + (System.nanoTime() - start) / 1_000_000 + " ms" +
+                (snapshot != null ? " (da snapshot)" : " (dal database)"));
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server avviato sulla porta " + PORT);
+        DeltaSync sync = DeltaSync.fromSystemProperties(chatManager, userManager);
+        if (sync != null) sync.start();
+
+        // l'indice di ricerca si costruisce in background: i messaggi nuovi vengono indicizzati subito
+        Thread.ofPlatform().daemon().name("search-build").start(() -> {
+            try {
+                chatManager.buildSearchIndex();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Errore nella costruzione dell'indice di ricerca");
+            }
+        });
+
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        chatManager.setAdmission(admission);
+        admission.start();
+
+        DeliveryCursors cursors = DeliveryCursors.fromSystemProperties(chatManager);
+        chatManager.setCursors(cursors);
+        cursors.start();
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Nuovo client connesso: " + clientSocket.getInetAddress());
+        PresenceService presence = PresenceService.fromSystemProperties(chatManager, userManager);
+        userManager.setPresence(presence);
+        presence.start();
 
-                // crea e avvia un thread ClientHandler
-                ClientHandler handler = new ClientHandler(clientSocket, chatManager, userManager);
-                new Thread(handler).start();
+        Cluster cluster = Cluster.fromSystemProperties(userManager, PORT);
+        if (cluster != null && sync == null) {
+            // senza DeltaSync questo nodo non vedrebbe la cronologia scritta dagli altri
+            System.out.println("Sincronizzazione incrementale non disponibile: il server resta un nodo singolo");
+        } else if (cluster != null) {
+            try {
+                cluster.start();
+                userManager.setCluster(cluster);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Impossibile avviare il cluster, il server resta un nodo singolo");
             }
+        }
+
+        AuthService auth = userManager.getAuthService();
+        registerGauges(admission, presence, auth);
+        MetricsEndpoint metrics = MetricsEndpoint.fromSystemProperties(PORT);
+        if (metrics != null) {
+            try {
+                metrics.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Impossibile avviare l'endpoint delle metriche");
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (metrics != null) metrics.shutdown();
+            if (sync != null) sync.shutdown();
+            if (cluster != null) cluster.shutdown();
+            presence.shutdown();
+            admission.shutdown();
+            auth.shutdown();
+            cursors.shutdown();
+            chatManager.shutdown();
+            saveSnapshot();
+        }));
+
+        // attività periodiche: snapshot e pulizia di sessioni e limiti di login scaduti
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        if (SNAPSHOT_INTERVAL_SEC > 0) {
+            scheduler.scheduleWithFixedDelay(this::saveSnapshot, SNAPSHOT_INTERVAL_SEC, SNAPSHOT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(auth::cleanup, 1, 1, TimeUnit.MINUTES);
+
+        try {
+            engine.start(PORT, chatManager, userManager);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // valori letti solo quando qualcuno chiede le metriche
+    private void registerGauges(AdmissionController admission, PresenceService presence, AuthService auth) {
+        ConnectionPool pool = DBManager.getPool();
+        Metrics.gauge("chat_clients_logged_in", userManager::getLocalCount);
+        Metrics.gauge("chat_users_online", presence::getOnlineCount);
+        Metrics.gauge("chat_outbound_queue_depth", OutboundQueue::getTotalDepth);
+        Metrics.gauge("chat_outbound_queue_max_depth", userManager::getMaxOutboundDepth);
+        Metrics.gauge("chat_worker_queue_depth", () -> chatManager.getWorkers().getPending());
+        Metrics.gauge("chat_journal_queue_depth", () -> chatManager.getJournal().getPending());
+        Metrics.gauge("chat_auth_queue_depth", auth::getPending);
+        Metrics.gauge("chat_db_pool_active", pool::getActive);
+        Metrics.gauge("chat_db_pool_idle", pool::getIdle);
+        Metrics.gauge("chat_db_pool_waiting", pool::getWaiting);
+        Metrics.gauge("chat_admission_shedding", () -> admission.isShedding() ? 1 : 0);
+        Metrics.gauge("chat_process_cpu_load", admission::getCpu);
+        Metrics.gauge("jvm_heap_used_bytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
 
+    private void saveSnapshot() {
+        try {
+            Snapshot.write(Snapshot.PATH, userManager.getUsers(), chatManager.getChats());
         } catch (Exception e) {
             e.printStackTrace();
+            System.out.println("Errore nel salvataggio dello snapshot");
         }
     }
 
+    // motore scelto all'avvio: "virtual" (default) oppure "nio",
+    // come primo argomento o con -Dchat.engine=...
     public static void main(String[] args) {
-        Server server = new Server();
+        String engine = args.length > 0 ? args[0] : System.getProperty("chat.engine", "virtual");
+        Server server = new Server(ConnectionEngine.fromName(engine));
         server.start();
     }
 }
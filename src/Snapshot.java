@@ -0,0 +1,170 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Fotografia binaria di utenti, chat e partecipazioni, con i massimi id visti (high-water mark).
+// All'avvio si carica lo snapshot e dal DB si legge solo quello che è stato aggiunto dopo.
+//
+// Formato: MAGIC, VERSION, creato (millis), maxUserId, maxChatId,
+//          utenti [id, username, password, status], chat [id, tipo, nome?, id dei partecipanti]
+public class Snapshot {
+    private static final int MAGIC = 0x43485331; // "CHS1"
+    private static final int VERSION = 2;
+    private static final byte DM_TYPE = 0;
+    private static final byte GROUP_TYPE = 1;
+
+    public static final Path PATH = Path.of(System.getProperty("chat.snapshot.path", "data/snapshot.bin"));
+
+    private final long createdAt;
+    private final int maxUserId;
+    private final int maxChatId;
+    private final Map<Integer, User> users; // id → utente, condivisi tra chat e UserManager
+    private final List<Chat> chats;
+
+    private Snapshot(long createdAt, int maxUserId, int maxChatId, Map<Integer, User> users, List<Chat> chats) {
+        this.createdAt = createdAt;
+        this.maxUserId = maxUserId;
+        this.maxChatId = maxChatId;
+        this.users = users;
+        this.chats = chats;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getMaxUserId() {
+        return maxUserId;
+    }
+
+    public int getMaxChatId() {
+        return maxChatId;
+    }
+
+    public Collection<User> getUsers() {
+        return users.values();
+    }
+
+    public List<Chat> getChats() {
+        return chats;
+    }
+
+    // --------------------
+    // SCRITTURA
+    // --------------------
+    // scrive su un file temporaneo e poi lo sposta: chi legge vede il vecchio snapshot o quello nuovo
+    public static void write(Path path, Collection<User> userList, Collection<Chat> chatList) throws IOException {
+        // gli utenti delle chat possono essere istanze diverse da quelle di UserManager: si scrivono per id
+        Map<Integer, User> users = new LinkedHashMap<>();
+        for (User u : userList) users.put(u.getID(), u);
+        for (Chat c : chatList) {
+            for (User u : c.getParticipants()) users.putIfAbsent(u.getID(), u);
+        }
+        int maxUserId = 0;
+        for (User u : userList) maxUserId = Math.max(maxUserId, u.getID());
+        int maxChatId = 0;
+        for (Chat c : chatList) maxChatId = Math.max(maxChatId, c.getID());
+
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "snapshot", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(maxUserId);
+            out.writeInt(maxChatId);
+
+            out.writeInt(users.size());
+            for (User u : users.values()) {
+                out.writeInt(u.getID());
+                out.writeUTF(u.getUsername());
+                out.writeUTF(u.getPassword());
+                out.writeBoolean(u.getStatus());
+            }
+
+            List<Chat> chats = new ArrayList<>(chatList);
+            out.writeInt(chats.size());
+            for (Chat c : chats) {
+                out.writeInt(c.getID());
+                if (c instanceof Gruppo g) {
+                    out.writeByte(GROUP_TYPE);
+                    out.writeUTF(g.getNome());
+                } else {
+                    out.writeByte(DM_TYPE);
+                }
+                List<User> participants = c.getParticipants();
+                out.writeInt(participants.size());
+                for (User u : participants) out.writeInt(u.getID());
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // --------------------
+    // LETTURA
+    // --------------------
+    // null se lo snapshot non c'è o non è leggibile: in quel caso si carica tutto dal DB
+    public static Snapshot load(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Snapshot " + path + " non riconosciuto, verrà ignorato");
+                return null;
+            }
+            long createdAt = in.readLong();
+            int maxUserId = in.readInt();
+            int maxChatId = in.readInt();
+
+            int userCount = in.readInt();
+            Map<Integer, User> users = new HashMap<>(userCount * 2);
+            for (int i = 0; i < userCount; i++) {
+                User u = new User(in.readInt(), in.readUTF(), in.readUTF(), in.readBoolean());
+                users.put(u.getID(), u);
+            }
+
+            int chatCount = in.readInt();
+            List<Chat> chats = new ArrayList<>(chatCount);
+            for (int i = 0; i < chatCount; i++) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                String nome = type == GROUP_TYPE ? in.readUTF() : null;
+                int n = in.readInt();
+                List<User> participants = new ArrayList<>(n);
+                for (int p = 0; p < n; p++) {
+                    User u = users.get(in.readInt());
+                    if (u != null) participants.add(u);
+                }
+
+                if (type == GROUP_TYPE) {
+                    Gruppo g = new Gruppo(id, nome);
+                    g.getParticipants().addAll(participants);
+                    chats.add(g);
+                } else if (participants.size() == 2) {
+                    chats.add(new DM(id, participants.get(0), participants.get(1)));
+                }
+            }
+            return new Snapshot(createdAt, maxUserId, maxChatId, users, chats);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Errore nella lettura dello snapshot, verrà ignorato");
+            return null;
+        }
+    }
+}
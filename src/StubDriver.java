@@ -0,0 +1,216 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+// Driver JDBC finto per provare il server senza PostgreSQL (load generator, benchmark):
+//   -Dchat.db.url=jdbc:stub
+// Le scritture riescono sempre e non salvano nulla, le SELECT restituiscono zero righe; le INSERT
+// ... RETURNING e nextval() restituiscono id crescenti, così registrazioni, chat e blocchi di id
+// funzionano. Ogni esecuzione (query, update o batch) costa chat.db.stub.latencyUs microsecondi,
+// per simulare il round trip verso il DB. I benchmark possono registrare righe finte per una query
+// con setRows().
+public class StubDriver implements Driver {
+    public static final String PREFIX = "jdbc:stub";
+
+    private static volatile long latencyNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.db.stub.latencyUs", 0L));
+    private static final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+    private static final LongAdder executions = new LongAdder();
+    // frammento di SQL → righe in funzione dei parametri (indice → valore)
+    private static final Map<String, Function<Map<Integer, Object>, List<Map<String, Object>>>> fixtures = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static void setLatencyMicros(long micros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    // le query che contengono fragment (es. "FROM gruppo") restituiscono rows(parametri)
+    public static void setRows(String fragment, Function<Map<Integer, Object>, List<Map<String, Object>>> rows) {
+        fixtures.put(fragment, rows);
+    }
+
+    public static void clearRows() {
+        fixtures.clear();
+    }
+
+    // round trip verso il DB simulati finora
+    public static long getExecutions() {
+        return executions.sum();
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) {
+        if (!acceptsURL(url)) return null;
+        return proxy(Connection.class, (p, m, args) -> switch (m.getName()) {
+            case "prepareStatement" -> statement(PreparedStatement.class, (String) args[0]);
+            case "createStatement" -> statement(Statement.class, null);
+            case "isValid", "getAutoCommit" -> true;
+            case "createArrayOf" -> proxy(java.sql.Array.class, (pp, mm, aa) -> defaultValue(pp, mm, aa));
+            default -> defaultValue(p, m, args);
+        });
+    }
+
+    private static Object statement(Class<? extends Statement> type, String preparedSql) {
+        Map<Integer, Object> params = new HashMap<>();
+        return proxy(type, (p, m, args) -> {
+            String name = m.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer i) {
+                params.put(i, args[1]);
+                return null;
+            }
+            return switch (name) {
+                case "executeQuery" -> {
+                    roundTrip();
+                    yield resultSet(rows(args != null && args.length > 0 ? (String) args[0] : preparedSql, params));
+                }
+                case "executeUpdate" -> {
+                    roundTrip();
+                    yield 1;
+                }
+                case "execute" -> {
+                    roundTrip();
+                    yield false;
+                }
+                case "executeBatch" -> {
+                    roundTrip();
+                    yield new int[0];
+                }
+                case "getGeneratedKeys" -> resultSet(List.of());
+                default -> defaultValue(p, m, args);
+            };
+        });
+    }
+
+    private static void roundTrip() {
+        executions.increment();
+        long nanos = latencyNanos;
+        if (nanos > 0) LockSupport.parkNanos(nanos);
+    }
+
+    // righe restituite da una query: id per RETURNING e nextval, nessuna riga per il resto
+    private static List<Map<String, Object>> rows(String sql, Map<Integer, Object> params) {
+        for (Map.Entry<String, Function<Map<Integer, Object>, List<Map<String, Object>>>> f : fixtures.entrySet()) {
+            if (sql.contains(f.getKey())) return f.getValue().apply(params);
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (sql.contains("RETURNING")) {
+            String column = sql.substring(sql.indexOf("RETURNING") + 9).trim();
+            rows.add(Map.of(column, sequence(sql.substring(0, sql.indexOf('('))).incrementAndGet()));
+        } else if (sql.contains("nextval")) {
+            int count = sql.contains("generate_series") && params.get(1) instanceof Integer n ? n : 1;
+            AtomicLong seq = sequence(sql);
+            for (int i = 0; i < count; i++) rows.add(Map.of("1", seq.incrementAndGet()));
+        }
+        return rows;
+    }
+
+    private static AtomicLong sequence(String key) {
+        return sequences.computeIfAbsent(key, k -> new AtomicLong(1000));
+    }
+
+    private static ResultSet resultSet(List<Map<String, Object>> rows) {
+        int[] row = {-1};
+        return proxy(ResultSet.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "next":
+                    return ++row[0] < rows.size();
+                case "getTimestamp":
+                    return rows.get(row[0]).get(String.valueOf(args[0]));
+                case "getInt":
+                case "getLong":
+                case "getString":
+                    Object v = rows.get(row[0]).get(String.valueOf(args[0]));
+                    if (m.getName().equals("getString")) return v == null ? null : v.toString();
+                    long n = v == null ? 0 : ((Number) v).longValue();
+                    return m.getName().equals("getInt") ? (Object) (int) n : (Object) n;
+                default:
+                    return defaultValue(p, m, args);
+            }
+        });
+    }
+
+    // close(), commit(), setAutoCommit() e simili non fanno nulla
+    private static Object defaultValue(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "stub";
+        }
+        Class<?> r = m.getReturnType();
+        if (r == boolean.class) return false;
+        if (r == int.class) return 0;
+        if (r == long.class) return 0L;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{type}, (p, m, args) -> {
+            try {
+                return handler.invoke(p, m, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getLogger("StubDriver");
+    }
+}
@@ -0,0 +1,263 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bus a maglia completa su TCP: ogni nodo apre una connessione verso ogni peer configurato
+// e la usa solo per inviare; riceve sulle connessioni aperte dagli altri.
+//
+// Handshake con segreto condiviso (chat.cluster.secret), in entrambe le direzioni:
+//   chi si collega → [int id nodo][nonce 16 byte]
+//   chi accetta    → [nonce 16 byte][HMAC-SHA256(segreto, "S" + nonce + nonce)]
+//   chi si collega → [HMAC-SHA256(segreto, "C" + nonce + nonce + id nodo)]
+// Chi non conosce il segreto non può né inviare frame né riceverli. Il traffico non è cifrato:
+// il cluster va tenuto su una rete privata.
+// Poi frame: [int lunghezza][byte...], al massimo maxFrameBytes.
+//
+// La coda verso un peer è limitata in numero di frame e in byte e resta piena anche mentre il peer
+// è scollegato: alla riconnessione i frame accodati partono nell'ordine in cui sono stati inviati,
+// seguiti dallo stato inviato da onConnected. Oltre il limite i frame si scartano.
+public class TcpMeshBus implements ClusterBus {
+    private static final long RECONNECT_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int NONCE_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+
+    private final int nodeId;
+    private final InetSocketAddress bindAddress;
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    private final int queueCapacity;
+    private final long queueBytes;
+    private final int maxFrameBytes;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private ServerSocket serverSocket;
+    private Listener listener;
+    private volatile boolean running = true;
+
+    public TcpMeshBus(int nodeId, InetSocketAddress bindAddress, Map<Integer, InetSocketAddress> peerAddresses,
+                      byte[] secret, int queueCapacity, long queueBytes, int maxFrameBytes) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.secret = new SecretKeySpec(secret, "HmacSHA256");
+        this.queueCapacity = queueCapacity;
+        this.queueBytes = queueBytes;
+        this.maxFrameBytes = maxFrameBytes;
+        peerAddresses.forEach((id, address) -> peers.put(id, new Peer(id, address)));
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+        Thread.ofVirtual().name("cluster-accept").start(this::acceptLoop);
+        for (Peer p : peers.values()) {
+            Thread.ofVirtual().name("cluster-peer-" + p.id).start(p::writeLoop);
+        }
+        System.out.println("Nodo " + nodeId + " in ascolto per il cluster su " + bindAddress.getHostString() + ":" + bindAddress.getPort());
+    }
+
+    @Override
+    public void send(int node, byte[] frame) {
+        Peer p = peers.get(node);
+        if (p != null) p.offer(frame);
+    }
+
+    @Override
+    public void broadcast(byte[] frame) {
+        for (Peer p : peers.values()) p.offer(frame);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try { serverSocket.close(); } catch (Exception ignored) {}
+        for (Peer p : peers.values()) p.disconnect();
+    }
+
+    // --------------------
+    // HANDSHAKE
+    // --------------------
+    private byte[] nonce() {
+        byte[] n = new byte[NONCE_BYTES];
+        random.nextBytes(n);
+        return n;
+    }
+
+    private byte[] mac(String role, byte[] clientNonce, byte[] serverNonce, int node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(role.getBytes(StandardCharsets.US_ASCII));
+            mac.update(clientNonce);
+            mac.update(serverNonce);
+            if (node >= 0) {
+                mac.update(new byte[]{(byte) (node >>> 24), (byte) (node >>> 16), (byte) (node >>> 8), (byte) node});
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int n) throws IOException {
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return b;
+    }
+
+    // --------------------
+    // RICEZIONE
+    // --------------------
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().start(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        int from = -1;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            int node = in.readInt();
+            byte[] clientNonce = readBytes(in, NONCE_BYTES);
+            byte[] serverNonce = nonce();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(serverNonce);
+            out.write(mac("S", clientNonce, serverNonce, -1));
+            out.flush();
+            if (!MessageDigest.isEqual(readBytes(in, MAC_BYTES), mac("C", clientNonce, serverNonce, node))) {
+                System.out.println("Connessione di cluster rifiutata da " + socket.getRemoteSocketAddress() + ": segreto errato");
+                return;
+            }
+            if (!peers.containsKey(node)) {
+                System.out.println("Connessione di cluster rifiutata da " + socket.getRemoteSocketAddress() + ": nodo " + node + " non configurato");
+                return;
+            }
+            socket.setSoTimeout(0);
+            from = node;
+
+            while (true) {
+                int len = in.readInt();
+                if (len <= 0 || len > maxFrameBytes) {
+                    System.out.println("Frame di " + len + " byte dal nodo " + from + ", connessione chiusa");
+                    return;
+                }
+                byte[] frame = new byte[len];
+                in.readFully(frame);
+                listener.onFrame(from, frame);
+            }
+        } catch (IOException e) {
+            // connessione chiusa dal peer
+        } finally {
+            if (from >= 0) {
+                System.out.println("Nodo " + from + " disconnesso");
+                listener.onDisconnected(from);
+            }
+        }
+    }
+
+    // --------------------
+    // INVIO
+    // --------------------
+    private class Peer {
+        private final int id;
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(queueCapacity);
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile Socket socket;
+        private volatile boolean overflowing; // per non scrivere un avviso a ogni frame scartato
+
+        Peer(int id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        // accoda anche mentre il peer è scollegato, entro i limiti della coda
+        void offer(byte[] frame) {
+            if (queuedBytes.addAndGet(frame.length) > queueBytes || !queue.offer(frame)) {
+                queuedBytes.addAndGet(-frame.length);
+                if (!overflowing) {
+                    overflowing = true;
+                    System.out.println("Coda verso il nodo " + id + " piena, frame scartati");
+                }
+                return;
+            }
+            overflowing = false;
+        }
+
+        void writeLoop() {
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(address, (int) RECONNECT_MS);
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    socket = s;
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    byte[] clientNonce = nonce();
+                    out.writeInt(nodeId);
+                    out.write(clientNonce);
+                    out.flush();
+                    byte[] serverNonce = readBytes(in, NONCE_BYTES);
+                    if (!MessageDigest.isEqual(readBytes(in, MAC_BYTES), mac("S", clientNonce, serverNonce, -1))) {
+                        System.out.println("Il nodo " + id + " (" + address + ") non conosce il segreto del cluster");
+                        throw new IOException("handshake fallito");
+                    }
+                    out.write(mac("C", clientNonce, serverNonce, nodeId));
+                    out.flush();
+                    s.setSoTimeout(0);
+
+                    System.out.println("Collegato al nodo " + id + " (" + address + ")");
+                    listener.onConnected(id);
+
+                    while (running) {
+                        byte[] frame = queue.take();
+                        queuedBytes.addAndGet(-frame.length);
+                        out.writeInt(frame.length);
+                        out.write(frame);
+                        // un flush per gruppo di frame già in coda
+                        if (queue.isEmpty()) out.flush();
+                    }
+                } catch (IOException e) {
+                    // peer non raggiungibile: si riprova, i frame restano in coda
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void disconnect() {
+            Socket s = socket;
+            if (s != null) {
+                try { s.close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Protocollo testuale originale: una riga "[chat] mittente: contenuto" per messaggio.
+// Il contenuto è già in UTF-8 e viene copiato così com'è.
+public class TextWire implements Wire {
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+
+    public TextWire(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 16 * 1024);
+    }
+
+    @Override
+    public void writeText(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    // il formato testo resta invariato per i client esistenti: id e seq non vengono inviati (l'id c'è in /open)
+    public void writeMessage(int chatId, int senderId, long messageId, long seq, byte[] content) throws IOException {
+        out.write(("[" + chatId + "] " + senderId + ": ").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.write(NEWLINE);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
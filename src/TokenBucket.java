@@ -0,0 +1,37 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limite di frequenza: fino a burst richieste di fila, poi perSec al secondo.
+// Implementato come GCRA, equivalente a un token bucket: lo stato è un solo long, il "tempo
+// teorico di arrivo" della prossima richiesta, aggiornato con CAS. Nessun lock e nessuna
+// allocazione per richiesta, quindi si può usare sul percorso dei messaggi.
+// perSec deve essere > 0: chi vuole un limite disattivabile non crea il bucket (vedi Chat).
+public class TokenBucket {
+    // intervallo e tolleranza restano lontani da Long.MAX_VALUE: tat + interval non va in overflow
+    private static final long MAX_NANOS = Long.MAX_VALUE / 4;
+
+    private final long interval;  // ns per gettone
+    private final long tolerance; // anticipo massimo sul ritmo costante: (burst - 1) gettoni
+    private final AtomicLong tat;
+
+    public TokenBucket(double burst, double perSec) {
+        if (!(perSec > 0)) throw new IllegalArgumentException("perSec deve essere > 0: " + perSec);
+        this.interval = (long) Math.max(1, Math.min(MAX_NANOS, 1e9 / perSec));
+        this.tolerance = (long) Math.min(MAX_NANOS, Math.max(0, burst - 1) * interval);
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = tat.get();
+            long start = current - now > 0 ? current : now;
+            if (start - now > tolerance) return false;
+            if (tat.compareAndSet(current, start + interval)) return true;
+        }
+    }
+
+    // un bucket pieno non serve più: si può eliminare e ricreare al prossimo uso
+    public boolean isFull() {
+        return tat.get() - System.nanoTime() <= 0;
+    }
+}
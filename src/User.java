@@ -5,7 +5,7 @@ public class User {
     private String username;
     private String password;
     private List<Chat> chat;
-    private boolean status;
+    private volatile boolean status;
 
     public User(int ID, String username, String password, boolean status) {
         this.ID = ID;
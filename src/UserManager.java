@@ -1,27 +1,68 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.sql.SQLException;
 
 public class UserManager {
     private Map<String, User> userList;
-    private Map<String, User> online;
-    private Map<User, ClientHandler> clientHandlers;
+    private Map<Integer, User> usersById;
+    private Map<Integer, ClientHandler> clientHandlers; // id utente → connessione
     private DBManager dbManager;
+    private IdAllocator userIds;
+    private volatile Cluster cluster; // null se il server è un nodo singolo
+    private volatile PresenceService presence; // null nei benchmark
+    private volatile AuthService auth;
 
     public UserManager() {
-        userList = new HashMap<>();
-        online = new HashMap<>();
-        clientHandlers = new HashMap<>();
-        dbManager = new DBManager();
+        this(new DBManager());
+    }
+
+    // permette di usare un DBManager alternativo (es. nei benchmark)
+    public UserManager(DBManager dbManager) {
+        this(dbManager, null);
+    }
+
+    // con uno snapshot si parte da quello e dal DB si leggono solo gli utenti nuovi
+    public UserManager(DBManager dbManager, Snapshot snapshot) {
+        userList = new ConcurrentHashMap<>();
+        usersById = new ConcurrentHashMap<>();
+        clientHandlers = new ConcurrentHashMap<>();
+        this.dbManager = dbManager;
+        userIds = new IdAllocator(dbManager, "utente", "id_utente", Integer.getInteger("chat.ids.userBlockSize", 100));
+
+        // carica utenti all'avvio
+        if (snapshot != null) {
+            loadUsersFromSnapshot(snapshot);
+        } else {
+            loadUsersFromDB();
+        }
+    }
 
-        // carica utenti dal DB all'avvio
-        loadUsersFromDB();
+    // gli id degli utenti arrivano a blocchi: un utente registrato da un altro nodo con un id sotto
+    // maxUserId può essere stato scritto dopo lo snapshot, quindi si rilegge anche una finestra
+    // sotto il mark (DeltaSync.LOOKBACK_BLOCKS blocchi) e si aggiunge solo chi manca
+    private void loadUsersFromSnapshot(Snapshot snapshot) {
+        for (User u : snapshot.getUsers()) {
+            put(u);
+        }
+        try {
+            int nuovi = 0;
+            for (User u : dbManager.getUsersAfter(snapshot.getMaxUserId() - DeltaSync.LOOKBACK_BLOCKS * userIds.getBlockSize())) {
+                if (putIfAbsent(u)) nuovi++;
+            }
+            System.out.println("Caricati " + userList.size() + " utenti dallo snapshot (" + nuovi + " nuovi dal database)");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Errore nel caricamento degli utenti nuovi dal database.");
+        }
     }
 
     private void loadUsersFromDB() {
         try {
             for (User u : dbManager.getAllUsers()) {
-                userList.put(u.getUsername(), u);
+                put(u);
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -29,13 +70,21 @@ public class UserManager {
         }
     }
 
+    // assegna all'utente un id dalla sequenza del DB e lo registra
     public boolean register(User u) {
-        if (userList.containsKey(u.getUsername())) {
+        try {
+            u.setID((int) userIds.next());
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            System.out.println("Errore durante la registrazione dell'utente nel database.");
+            return false;
+        }
+        if (userList.putIfAbsent(u.getUsername(), u) != null) {
             return false;
         } else {
-            userList.put(u.getUsername(), u);
+            usersById.put(u.getID(), u);
             try {
-                dbManager.addUser(u.getUsername(), u.getPassword(), u.getStatus() ? 1 : 0);
+                dbManager.addUser(u.getID(), u.getUsername(), u.getPassword(), u.getStatus() ? 1 : 0);
             } catch (SQLException e) {
                 e.printStackTrace();
                 System.out.println("Errore durante la registrazione dell'utente nel database.");
@@ -44,50 +93,139 @@ public class UserManager {
         }
     }
 
-    public User login(String username, String password) {
-        User u = userList.get(username);
-        if (u != null && u.getPassword().equals(password)) {
-            u.setStatus(true);
-            online.put(username, u);
-            return u;
-        } else {
-            return null;
-        }
-    }
-
     public boolean logout(User u) {
         if (u != null && u.getStatus()) {
             u.setStatus(false);
-            online.remove(u.getUsername());
-            clientHandlers.remove(u);
+            removeClientHandler(u);
             return true;
         } else {
             return false;
         }
     }
 
+    // utente letto dal DB (es. registrato su un'altra istanza); true se è nuovo
+    public boolean applyUser(User u) {
+        return putIfAbsent(u);
+    }
+
+    private boolean putIfAbsent(User u) {
+        if (userList.putIfAbsent(u.getUsername(), u) != null) return false;
+        usersById.put(u.getID(), u);
+        return true;
+    }
+
+    private void put(User u) {
+        userList.put(u.getUsername(), u);
+        usersById.put(u.getID(), u);
+    }
+
+    public int getUserIdBlockSize() {
+        return userIds.getBlockSize();
+    }
+
+    // tutti gli utenti registrati, ad esempio per scrivere uno snapshot
+    public Collection<User> getUsers() {
+        return userList.values();
+    }
+
     public User getUser(String username) {
         return userList.get(username);
     }
 
+    public User getUser(int id) {
+        return usersById.get(id);
+    }
+
     public User getOnline(String username) {
-        return online.get(username);
+        User u = userList.get(username);
+        return u != null && isOnline(u) ? u : null;
+    }
+
+    // creato al primo uso, così i benchmark che non fanno login non avviano il pool di hash
+    public AuthService getAuthService() {
+        AuthService a = auth;
+        if (a == null) {
+            synchronized (this) {
+                if (auth == null) auth = AuthService.fromSystemProperties(this, dbManager);
+                a = auth;
+            }
+        }
+        return a;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public void setPresence(PresenceService presence) {
+        this.presence = presence;
+    }
+
+    public PresenceService getPresence() {
+        return presence;
     }
 
     public void setClientHandler(User user, ClientHandler handler) {
-        clientHandlers.put(user, handler);
+        clientHandlers.put(user.getID(), handler);
+        PresenceService p = presence;
+        if (p != null) p.connected(user);
+        Cluster c = cluster;
+        if (c != null) c.userOnline(user.getID());
     }
 
     public ClientHandler getClientHandler(User user) {
-        return clientHandlers.get(user);
+        return clientHandlers.get(user.getID());
+    }
+
+    public ClientHandler getClientHandler(int userId) {
+        return clientHandlers.get(userId);
+    }
+
+    // id degli utenti connessi a questa istanza
+    public List<Integer> getLocalUserIds() {
+        return new ArrayList<>(clientHandlers.keySet());
+    }
+
+    public int getLocalCount() {
+        return clientHandlers.size();
+    }
+
+    // coda di uscita più lunga tra i client connessi qui: il client più lento
+    public int getMaxOutboundDepth() {
+        int max = 0;
+        for (ClientHandler ch : clientHandlers.values()) {
+            max = Math.max(max, ch.getOutbound().getDepth());
+        }
+        return max;
     }
 
     public boolean isOnline(User user) {
-        return online.containsKey(user.getUsername());
+        PresenceService p = presence;
+        return p != null ? p.isOnline(user.getID()) : clientHandlers.containsKey(user.getID());
     }
 
     public boolean removeClientHandler(User user) {
-        return clientHandlers.remove(user) != null;
+        if (clientHandlers.remove(user.getID()) == null) return false;
+        offline(user);
+        return true;
+    }
+
+    // solo se è ancora quella connessione: l'utente potrebbe essersi già ricollegato con un'altra
+    public boolean removeClientHandler(User user, ClientHandler handler) {
+        if (!clientHandlers.remove(user.getID(), handler)) return false;
+        offline(user);
+        return true;
+    }
+
+    private void offline(User user) {
+        PresenceService p = presence;
+        if (p != null) p.disconnected(user);
+        Cluster c = cluster;
+        if (c != null) c.userOffline(user.getID());
     }
 }
 
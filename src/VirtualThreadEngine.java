@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Un virtual thread per connessione: il ClientHandler resta bloccante su readLine()
+// ma non occupa un thread di piattaforma mentre il client è inattivo.
+public class VirtualThreadEngine implements ConnectionEngine {
+
+    @Override
+    public void start(int port, ChatManager chatManager, UserManager userManager) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            System.out.println("Server avviato sulla porta " + port + " (virtual thread)");
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                System.out.println("Nuovo client connesso: " + clientSocket.getInetAddress());
+
+                executor.submit(new ClientHandler(clientSocket, chatManager, userManager));
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+// Formato con cui la OutboundQueue scrive verso il client (testo o BinaryProtocol).
+public interface Wire {
+
+    // testo già diviso in righe terminate
+    void writeText(String text) throws IOException;
+
+    // content è il testo del messaggio già in UTF-8; messageId è l'id del messaggio nel DB,
+    // seq la sua posizione nella chat
+    void writeMessage(int chatId, int senderId, long messageId, long seq, byte[] content) throws IOException;
+
+    void flush() throws IOException;
+}